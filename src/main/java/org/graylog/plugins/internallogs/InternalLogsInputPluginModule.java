@@ -19,6 +19,9 @@ package org.graylog.plugins.internallogs;
 
 import org.graylog.plugins.internallogs.codec.SerializedLogEventCodec;
 import org.graylog.plugins.internallogs.input.InternalLogsInput;
+import org.graylog.plugins.internallogs.rest.ClusterInternalLogsThroughputResource;
+import org.graylog.plugins.internallogs.rest.InternalLogsTailResource;
+import org.graylog.plugins.internallogs.rest.InternalLogsThroughputResource;
 import org.graylog.plugins.internallogs.transport.SerializedLogEventTransport;
 import org.graylog2.plugin.PluginModule;
 
@@ -28,5 +31,8 @@ public class InternalLogsInputPluginModule extends PluginModule {
         addTransport("serialized-logevent", SerializedLogEventTransport.class);
         addCodec("serialized-logevent", SerializedLogEventCodec.class);
         addMessageInput(InternalLogsInput.class);
+        addRestResource(InternalLogsThroughputResource.class);
+        addRestResource(ClusterInternalLogsThroughputResource.class);
+        addRestResource(InternalLogsTailResource.class);
     }
 }
@@ -0,0 +1,321 @@
+/**
+ * Graylog Internal Logs Plugin - Internal Logs plugin for Graylog
+ * Copyright © 2016 Graylog, Inc. (hello@graylog.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.internallogs.codec;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.collect.ImmutableSet;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InvalidClassException;
+import java.io.ObjectInputStream;
+import java.io.ObjectStreamClass;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * An {@link ObjectInputStream} which only deserializes the classes of a serialized Log4j
+ * {@link org.apache.logging.log4j.core.LogEvent} as written by
+ * {@link org.graylog.plugins.internallogs.log4j.DirectConsumingAppender}.
+ * <p>
+ * The allowlist is enforced by a serialization filter (JEP 290) on the stream, so it also applies to the nested
+ * stream which deserializes the message ({@link java.rmi.MarshalledObject}), because it inherits the filter of the
+ * outer stream. The values of the context data are read by {@link org.apache.logging.log4j.util.SortedArrayStringMap}
+ * through its own plain {@link ObjectInputStream}, which is only covered by the JVM-wide filter
+ * ({@code jdk.serialFilter}), if any. Rejected classes cause an {@link InvalidClassException} before any instance
+ * is created. If the JVM doesn't support serialization filters, nested streams can't be checked and
+ * {@link java.rmi.MarshalledObject} is rejected as well.
+ * <p>
+ * Exceptions are written as {@link org.apache.logging.log4j.core.impl.ThrowableProxy}. Payloads journaled by older
+ * versions may also contain the original {@link Throwable}, which is accepted if none of its classes below
+ * {@link Throwable} customizes deserialization, and replaced by {@code null} so the event falls back to its proxy.
+ * Checking this requires loading (but not initializing) classes which aren't on the allowlist.
+ * <p>
+ * Resolved classes are cached per class loader, which avoids the stack walk and class loader lookup of
+ * {@link ObjectInputStream#resolveClass(ObjectStreamClass)} for every descriptor of every message.
+ */
+public class LogEventInputStream extends ObjectInputStream {
+    private static final Logger LOG = LoggerFactory.getLogger(LogEventInputStream.class);
+
+    private static final String MARSHALLED_OBJECT = "java.rmi.MarshalledObject";
+    private static final Set<String> ALLOWED_CLASSES = ImmutableSet.of(
+            // Log event
+            "org.apache.logging.log4j.core.impl.Log4jLogEvent$LogEventProxy",
+            "org.apache.logging.log4j.Level",
+            "org.apache.logging.log4j.spi.StandardLevel",
+            "org.apache.logging.log4j.Marker",
+            "org.apache.logging.log4j.MarkerManager$Log4jMarker",
+            "org.apache.logging.log4j.util.SortedArrayStringMap",
+            "org.apache.logging.log4j.spi.MutableThreadContextStack",
+            "org.apache.logging.log4j.ThreadContext$EmptyThreadContextStack",
+            MARSHALLED_OBJECT,
+            // Messages
+            "org.apache.logging.log4j.message.SimpleMessage",
+            "org.apache.logging.log4j.message.ParameterizedMessage",
+            "org.apache.logging.log4j.message.ObjectMessage",
+            "org.apache.logging.log4j.message.ObjectArrayMessage",
+            "org.apache.logging.log4j.message.StringFormattedMessage",
+            "org.apache.logging.log4j.message.MessageFormatMessage",
+            "org.apache.logging.log4j.message.FormattedMessage",
+            // Exceptions
+            "org.apache.logging.log4j.core.impl.ThrowableProxy",
+            "org.apache.logging.log4j.core.impl.ExtendedStackTraceElement",
+            "org.apache.logging.log4j.core.impl.ExtendedClassInfo",
+            "java.lang.StackTraceElement",
+            // Suppressed exceptions of legacy Throwables
+            "java.util.Collections$UnmodifiableCollection",
+            "java.util.Collections$UnmodifiableList",
+            "java.util.Collections$UnmodifiableRandomAccessList",
+            "java.util.Collections$EmptyList",
+            // Values
+            "java.lang.Object",
+            "java.lang.Enum",
+            "java.lang.String",
+            "java.lang.Boolean",
+            "java.lang.Character",
+            "java.lang.Number",
+            "java.lang.Byte",
+            "java.lang.Short",
+            "java.lang.Integer",
+            "java.lang.Long",
+            "java.lang.Float",
+            "java.lang.Double",
+            "java.util.ArrayList");
+
+    private static final SerialFilter SERIAL_FILTER = SerialFilter.create();
+    private static final LoadingCache<ClassLoader, ConcurrentMap<String, Class<?>>> RESOLVED_CLASSES = CacheBuilder.newBuilder()
+            .weakKeys()
+            .build(CacheLoader.from(classLoader -> new ConcurrentHashMap<>()));
+
+    static {
+        if (SERIAL_FILTER == null) {
+            LOG.warn("Serialization filters are not supported by this JVM, messages of serialized log events can't be decoded.");
+        }
+    }
+
+    private final ClassLoader classLoader;
+
+    public LogEventInputStream(InputStream in) throws IOException {
+        this(in, LogEventInputStream.class.getClassLoader());
+    }
+
+    public LogEventInputStream(InputStream in, ClassLoader classLoader) throws IOException {
+        super(in);
+        this.classLoader = classLoader;
+        enableResolveObject(true);
+        if (SERIAL_FILTER != null) {
+            SERIAL_FILTER.apply(this);
+        }
+    }
+
+    static boolean isSerialFilterSupported() {
+        return SERIAL_FILTER != null;
+    }
+
+    @Override
+    protected Class<?> resolveClass(ObjectStreamClass desc) throws IOException, ClassNotFoundException {
+        final String name = desc.getName();
+        final ConcurrentMap<String, Class<?>> resolvedClasses = RESOLVED_CLASSES.getUnchecked(classLoader);
+        final Class<?> cachedClass = resolvedClasses.get(name);
+        if (cachedClass != null) {
+            return cachedClass;
+        }
+
+        // Check the name first, so classes on the allowlist are loaded without further checks
+        final String componentTypeName = componentTypeName(name);
+        if (!isAllowed(componentTypeName) && !isLegacyThrowable(componentTypeName)) {
+            throw new InvalidClassException(name, "Class is not allowed in serialized log events");
+        }
+
+        final Class<?> resolvedClass = Class.forName(name, false, classLoader);
+        resolvedClasses.putIfAbsent(name, resolvedClass);
+        return resolvedClass;
+    }
+
+    @Override
+    protected Object resolveObject(Object obj) throws IOException {
+        // Legacy payloads also contain the original Throwable next to its ThrowableProxy
+        return obj instanceof Throwable ? null : obj;
+    }
+
+    @Override
+    protected Class<?> resolveProxyClass(String[] interfaces) throws IOException, ClassNotFoundException {
+        throw new InvalidClassException("Proxy classes are not allowed in serialized log events");
+    }
+
+    private static boolean isAllowed(Class<?> clazz) {
+        Class<?> type = clazz;
+        while (type.isArray()) {
+            type = type.getComponentType();
+        }
+        return type.isPrimitive() || isAllowed(type.getName()) || isLegacyThrowable(type);
+    }
+
+    private boolean isLegacyThrowable(@Nullable String name) {
+        if (name == null) {
+            return false;
+        }
+        final Class<?> clazz;
+        try {
+            clazz = Class.forName(name, false, classLoader);
+        } catch (ClassNotFoundException | LinkageError e) {
+            return false;
+        }
+        return isLegacyThrowable(clazz);
+    }
+
+    /**
+     * @return {@code true} if the given class is a {@link Throwable} whose deserialization only consists of
+     * {@code Throwable.readObject()} and setting fields, which are checked themselves
+     */
+    private static boolean isLegacyThrowable(Class<?> clazz) {
+        if (!Throwable.class.isAssignableFrom(clazz) || Externalizable.class.isAssignableFrom(clazz)) {
+            return false;
+        }
+        for (Class<?> type = clazz; type != Throwable.class; type = type.getSuperclass()) {
+            if (declaresMethod(type, "readObject", ObjectInputStream.class)
+                    || declaresMethod(type, "readObjectNoData")
+                    || declaresMethod(type, "readResolve")) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean declaresMethod(Class<?> type, String name, Class<?>... parameterTypes) {
+        try {
+            type.getDeclaredMethod(name, parameterTypes);
+            return true;
+        } catch (NoSuchMethodException e) {
+            return false;
+        } catch (LinkageError | SecurityException e) {
+            // Methods which can't be inspected are treated as present
+            return true;
+        }
+    }
+
+    private static boolean isAllowed(@Nullable String name) {
+        // null is the component type of a primitive array
+        if (name == null) {
+            return true;
+        }
+        if (MARSHALLED_OBJECT.equals(name)) {
+            return SERIAL_FILTER != null;
+        }
+        return ALLOWED_CLASSES.contains(name);
+    }
+
+    /**
+     * @return the class name of the (innermost) component type of the given binary name, or {@code null} for
+     * primitive types
+     */
+    @Nullable
+    private static String componentTypeName(String name) {
+        int dimensions = 0;
+        while (dimensions < name.length() && name.charAt(dimensions) == '[') {
+            dimensions++;
+        }
+        if (dimensions == 0) {
+            return name;
+        }
+        if (name.charAt(dimensions) == 'L' && name.endsWith(";")) {
+            return name.substring(dimensions + 1, name.length() - 1);
+        }
+        return null;
+    }
+
+    /**
+     * Sets an allowlist filter on a stream via reflection, because the serialization filter API is
+     * {@code sun.misc.ObjectInputFilter} in Java 8 and {@code java.io.ObjectInputFilter} since Java 9.
+     */
+    private static final class SerialFilter {
+        private final Method setObjectInputFilter;
+        private final Object filter;
+
+        private SerialFilter(Method setObjectInputFilter, Object filter) {
+            this.setObjectInputFilter = setObjectInputFilter;
+            this.filter = filter;
+        }
+
+        @Nullable
+        static SerialFilter create() {
+            for (String filterClassName : new String[]{"java.io.ObjectInputFilter", "sun.misc.ObjectInputFilter"}) {
+                try {
+                    return create(filterClassName);
+                } catch (ReflectiveOperationException | LinkageError | RuntimeException e) {
+                    LOG.debug("Serialization filter API {} isn't available", filterClassName, e);
+                }
+            }
+            return null;
+        }
+
+        private static SerialFilter create(String filterClassName) throws ReflectiveOperationException {
+            final Class<?> filterClass = Class.forName(filterClassName);
+            final Class<?> statusClass = Class.forName(filterClassName + "$Status");
+            final Method serialClass = Class.forName(filterClassName + "$FilterInfo").getMethod("serialClass");
+            final Method setObjectInputFilter = Class.forName(filterClassName + "$Config")
+                    .getMethod("setObjectInputFilter", ObjectInputStream.class, filterClass);
+            final Object allowed = statusClass.getField("ALLOWED").get(null);
+            final Object rejected = statusClass.getField("REJECTED").get(null);
+            final Object undecided = statusClass.getField("UNDECIDED").get(null);
+
+            final InvocationHandler handler = (proxy, method, args) -> {
+                switch (method.getName()) {
+                    case "checkInput":
+                        final Class<?> clazz = (Class<?>) serialClass.invoke(args[0]);
+                        // No class is checked for references, depth and stream size limits
+                        if (clazz == null) {
+                            return undecided;
+                        }
+                        return isAllowed(clazz) ? allowed : rejected;
+                    case "equals":
+                        return proxy == args[0];
+                    case "hashCode":
+                        return System.identityHashCode(proxy);
+                    case "toString":
+                        return LogEventInputStream.class.getSimpleName() + " filter";
+                    default:
+                        throw new UnsupportedOperationException(method.getName());
+                }
+            };
+            final Object filter = Proxy.newProxyInstance(LogEventInputStream.class.getClassLoader(), new Class<?>[]{filterClass}, handler);
+            return new SerialFilter(setObjectInputFilter, filter);
+        }
+
+        void apply(ObjectInputStream stream) throws IOException {
+            try {
+                setObjectInputFilter.invoke(null, stream, filter);
+            } catch (IllegalAccessException e) {
+                throw new IOException("Couldn't set serialization filter", e);
+            } catch (InvocationTargetException e) {
+                throw new IOException("Couldn't set serialization filter", e.getCause());
+            }
+        }
+    }
+}
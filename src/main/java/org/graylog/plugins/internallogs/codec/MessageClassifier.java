@@ -0,0 +1,248 @@
+/**
+ * Graylog Internal Logs Plugin - Internal Logs plugin for Graylog
+ * Copyright © 2016 Graylog, Inc. (hello@graylog.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.internallogs.codec;
+
+import com.google.common.base.Splitter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
+import java.util.TreeMap;
+import java.util.stream.IntStream;
+
+/**
+ * Assigns a category to log messages based on a list of rules, each consisting of a category, an optional logger
+ * name prefix and an optional keyword.
+ * <p>
+ * Rules are written one per line as {@code category|logger prefix|keyword}. A rule matches if the logger name
+ * starts with the prefix (at a package boundary) and the message contains the keyword (case-insensitive). Empty
+ * parts match everything, but each rule needs at least one of them. If several rules match, the first one wins.
+ * <p>
+ * All logger prefixes are compiled into a trie and all keywords into a single Aho-Corasick automaton, so
+ * classifying a message takes one pass over the logger name and one pass over the message, independent of the
+ * number of rules.
+ */
+public class MessageClassifier {
+    private static final Logger LOG = LoggerFactory.getLogger(MessageClassifier.class);
+    private static final Splitter LINE_SPLITTER = Splitter.on('\n').trimResults().omitEmptyStrings();
+    private static final Splitter RULE_SPLITTER = Splitter.on('|').trimResults().limit(3);
+
+    private final String[] categories;
+    private final boolean[] needsLogger;
+    private final boolean[] needsKeyword;
+    private final Node loggerTrie;
+    private final Node keywordAutomaton;
+
+    private MessageClassifier(List<String[]> rules) {
+        final int ruleCount = rules.size();
+        this.categories = new String[ruleCount];
+        this.needsLogger = new boolean[ruleCount];
+        this.needsKeyword = new boolean[ruleCount];
+
+        final Builder loggerTrieBuilder = new Builder();
+        final Builder keywordBuilder = new Builder();
+        for (int i = 0; i < ruleCount; i++) {
+            final String[] rule = rules.get(i);
+            categories[i] = rule[0];
+            needsLogger[i] = !rule[1].isEmpty();
+            needsKeyword[i] = !rule[2].isEmpty();
+            if (needsLogger[i]) {
+                loggerTrieBuilder.add(rule[1], i);
+            }
+            if (needsKeyword[i]) {
+                keywordBuilder.add(rule[2].toLowerCase(Locale.ROOT), i);
+            }
+        }
+        this.loggerTrie = loggerTrieBuilder.compile(false);
+        this.keywordAutomaton = keywordBuilder.compile(true);
+    }
+
+    /**
+     * Parses the given rules, skipping invalid lines.
+     *
+     * @return the classifier or {@code null} if there are no valid rules
+     */
+    @Nullable
+    public static MessageClassifier parse(@Nullable String rules) {
+        if (rules == null) {
+            return null;
+        }
+
+        final List<String[]> parsedRules = new ArrayList<>();
+        for (String line : LINE_SPLITTER.split(rules)) {
+            if (line.startsWith("#")) {
+                continue;
+            }
+            final List<String> parts = RULE_SPLITTER.splitToList(line);
+            if (parts.size() != 3 || parts.get(0).isEmpty() || (parts.get(1).isEmpty() && parts.get(2).isEmpty())) {
+                LOG.warn("Ignoring invalid classification rule \"{}\", expected \"category|logger prefix|keyword\"", line);
+                continue;
+            }
+            parsedRules.add(parts.toArray(new String[3]));
+        }
+
+        return parsedRules.isEmpty() ? null : new MessageClassifier(parsedRules);
+    }
+
+    /**
+     * @return the category of the first matching rule or {@code null} if no rule matches
+     */
+    @Nullable
+    public String classify(@Nullable String loggerName, @Nullable String message) {
+        final boolean[] loggerMatches = new boolean[categories.length];
+        int best = Integer.MAX_VALUE;
+
+        if (loggerName != null) {
+            Node node = loggerTrie;
+            for (int i = 0; i < loggerName.length() && node != null; i++) {
+                node = node.child(loggerName.charAt(i));
+                if (node != null && node.outputs.length > 0 && isPackageBoundary(loggerName, i + 1)) {
+                    for (int rule : node.outputs) {
+                        loggerMatches[rule] = true;
+                        if (!needsKeyword[rule] && rule < best) {
+                            best = rule;
+                        }
+                    }
+                }
+            }
+        }
+
+        if (message != null && keywordAutomaton.children.length > 0) {
+            Node state = keywordAutomaton;
+            for (int i = 0; i < message.length(); i++) {
+                final char c = Character.toLowerCase(message.charAt(i));
+                Node next = state.child(c);
+                while (next == null && state != keywordAutomaton) {
+                    state = state.fail;
+                    next = state.child(c);
+                }
+                state = next == null ? keywordAutomaton : next;
+                for (int rule : state.outputs) {
+                    if (rule >= best) {
+                        // Outputs are sorted, so no later rule can win
+                        break;
+                    }
+                    if (!needsLogger[rule] || loggerMatches[rule]) {
+                        best = rule;
+                    }
+                }
+            }
+        }
+
+        return best == Integer.MAX_VALUE ? null : categories[best];
+    }
+
+    private static boolean isPackageBoundary(String loggerName, int prefixLength) {
+        return prefixLength == loggerName.length()
+                || loggerName.charAt(prefixLength) == '.'
+                || loggerName.charAt(prefixLength - 1) == '.';
+    }
+
+    private static final class Node {
+        private static final Node[] NO_CHILDREN = new Node[0];
+
+        private char[] labels = new char[0];
+        private Node[] children = NO_CHILDREN;
+        private int[] outputs = new int[0];
+        private Node fail;
+
+        @Nullable
+        private Node child(char c) {
+            final int index = Arrays.binarySearch(labels, c);
+            return index < 0 ? null : children[index];
+        }
+    }
+
+    private static final class Builder {
+        private final BuilderNode root = new BuilderNode();
+
+        private void add(String key, int rule) {
+            BuilderNode node = root;
+            for (int i = 0; i < key.length(); i++) {
+                node = node.children.computeIfAbsent(key.charAt(i), c -> new BuilderNode());
+            }
+            node.rules.add(rule);
+        }
+
+        /**
+         * Converts the trie into its compact form and optionally computes the failure links and merged outputs of
+         * an Aho-Corasick automaton.
+         */
+        private Node compile(boolean withFailureLinks) {
+            final Node compiledRoot = compile(root);
+            if (withFailureLinks) {
+                compiledRoot.fail = compiledRoot;
+                final Queue<Node> queue = new ArrayDeque<>();
+                for (Node child : compiledRoot.children) {
+                    child.fail = compiledRoot;
+                    queue.add(child);
+                }
+                while (!queue.isEmpty()) {
+                    final Node node = queue.remove();
+                    for (int i = 0; i < node.children.length; i++) {
+                        final char c = node.labels[i];
+                        final Node child = node.children[i];
+                        Node fail = node.fail;
+                        while (fail.child(c) == null && fail != compiledRoot) {
+                            fail = fail.fail;
+                        }
+                        final Node failTarget = fail.child(c);
+                        child.fail = failTarget == null ? compiledRoot : failTarget;
+                        child.outputs = merge(child.outputs, child.fail.outputs);
+                        queue.add(child);
+                    }
+                }
+            }
+            return compiledRoot;
+        }
+
+        private static Node compile(BuilderNode builderNode) {
+            final Node node = new Node();
+            final int size = builderNode.children.size();
+            node.labels = new char[size];
+            node.children = new Node[size];
+            int i = 0;
+            for (Map.Entry<Character, BuilderNode> entry : builderNode.children.entrySet()) {
+                node.labels[i] = entry.getKey();
+                node.children[i] = compile(entry.getValue());
+                i++;
+            }
+            node.outputs = builderNode.rules.stream().mapToInt(Integer::intValue).sorted().toArray();
+            return node;
+        }
+
+        private static int[] merge(int[] a, int[] b) {
+            if (b.length == 0) {
+                return a;
+            }
+            return IntStream.concat(Arrays.stream(a), Arrays.stream(b)).sorted().distinct().toArray();
+        }
+    }
+
+    private static final class BuilderNode {
+        private final Map<Character, BuilderNode> children = new TreeMap<>();
+        private final List<Integer> rules = new ArrayList<>();
+    }
+}
@@ -0,0 +1,52 @@
+/**
+ * Graylog Internal Logs Plugin - Internal Logs plugin for Graylog
+ * Copyright © 2016 Graylog, Inc. (hello@graylog.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.internallogs.codec;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Computes stable 64-bit template IDs for unformatted log message patterns.
+ * <p>
+ * IDs are cached per distinct pattern, bounded by {@code maximumSize}, so the hash is computed roughly once per
+ * log statement.
+ */
+public class MessageTemplates {
+    private static final HashFunction HASH_FUNCTION = Hashing.farmHashFingerprint64();
+
+    private final LoadingCache<String, String> templateIds;
+
+    public MessageTemplates(long maximumSize) {
+        this.templateIds = CacheBuilder.newBuilder()
+                .maximumSize(maximumSize)
+                .build(CacheLoader.from(MessageTemplates::hash));
+    }
+
+    public String templateId(String template) {
+        return templateIds.getUnchecked(template);
+    }
+
+    static String hash(String template) {
+        return HASH_FUNCTION.hashString(template, StandardCharsets.UTF_8).toString();
+    }
+}
@@ -0,0 +1,180 @@
+/**
+ * Graylog Internal Logs Plugin - Internal Logs plugin for Graylog
+ * Copyright © 2016 Graylog, Inc. (hello@graylog.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.internallogs.codec;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.graylog2.cluster.Node;
+import org.graylog2.cluster.NodeNotFoundException;
+import org.graylog2.cluster.NodeService;
+import org.graylog2.plugin.cluster.ClusterConfigService;
+import org.graylog2.plugin.cluster.ClusterId;
+import org.graylog2.plugin.system.NodeId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.LongSupplier;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Caches the hostname and cluster ID of this node for the codecs.
+ * <p>
+ * The metadata is loaded on first use and refreshed asynchronously afterwards, more often while any of the values
+ * is still missing. A failed lookup keeps the previously known values.
+ */
+@Singleton
+public class NodeMetadataCache {
+    private static final Logger LOG = LoggerFactory.getLogger(NodeMetadataCache.class);
+
+    private static final long REFRESH_INTERVAL_MILLIS = TimeUnit.MINUTES.toMillis(5L);
+    private static final long RETRY_INTERVAL_MILLIS = TimeUnit.SECONDS.toMillis(10L);
+
+    private final NodeId nodeId;
+    private final NodeService nodeService;
+    private final ClusterConfigService clusterConfigService;
+    private final LongSupplier clock;
+    private final Executor refreshExecutor;
+    private final AtomicBoolean refreshing = new AtomicBoolean(false);
+    private volatile NodeMetadata metadata;
+
+    @Inject
+    public NodeMetadataCache(NodeId nodeId,
+                             NodeService nodeService,
+                             ClusterConfigService clusterConfigService) {
+        this(nodeId, nodeService, clusterConfigService, System::currentTimeMillis,
+                Executors.newSingleThreadExecutor(new ThreadFactoryBuilder()
+                        .setNameFormat("internal-logs-node-metadata-%d")
+                        .setDaemon(true)
+                        .build()));
+    }
+
+    @VisibleForTesting
+    NodeMetadataCache(NodeId nodeId,
+                      NodeService nodeService,
+                      ClusterConfigService clusterConfigService,
+                      LongSupplier clock,
+                      Executor refreshExecutor) {
+        this.nodeId = requireNonNull(nodeId);
+        this.nodeService = requireNonNull(nodeService);
+        this.clusterConfigService = requireNonNull(clusterConfigService);
+        this.clock = requireNonNull(clock);
+        this.refreshExecutor = requireNonNull(refreshExecutor);
+    }
+
+    public NodeMetadata get() {
+        final NodeMetadata current = metadata;
+        if (current == null) {
+            return initialize();
+        }
+
+        final long age = clock.getAsLong() - current.getLoadedAt();
+        final long interval = current.isComplete() ? REFRESH_INTERVAL_MILLIS : RETRY_INTERVAL_MILLIS;
+        if (age >= interval && refreshing.compareAndSet(false, true)) {
+            try {
+                refreshExecutor.execute(() -> {
+                    try {
+                        metadata = load(metadata);
+                    } finally {
+                        refreshing.set(false);
+                    }
+                });
+            } catch (RuntimeException e) {
+                // E.g. rejected by a shut down executor, the refresh is attempted again on the next call
+                refreshing.set(false);
+                LOG.debug("Couldn't schedule refresh of node metadata", e);
+            }
+        }
+        return current;
+    }
+
+    private synchronized NodeMetadata initialize() {
+        if (metadata == null) {
+            metadata = load(null);
+        }
+        return metadata;
+    }
+
+    private NodeMetadata load(@Nullable NodeMetadata previous) {
+        String hostname = previous == null ? null : previous.getHostname();
+        String clusterId = previous == null ? null : previous.getClusterId();
+
+        try {
+            final Node node = nodeService.byNodeId(nodeId);
+            hostname = node.getHostname();
+        } catch (NodeNotFoundException e) {
+            LOG.debug("Couldn't find node {}", nodeId);
+        } catch (RuntimeException e) {
+            LOG.debug("Couldn't load node {}", nodeId, e);
+        }
+
+        try {
+            final ClusterId clusterIdBean = clusterConfigService.get(ClusterId.class);
+            if (clusterIdBean != null) {
+                clusterId = clusterIdBean.clusterId();
+            }
+        } catch (RuntimeException e) {
+            LOG.debug("Couldn't load cluster ID", e);
+        }
+
+        return new NodeMetadata(nodeId.toString(), hostname, clusterId, clock.getAsLong());
+    }
+
+    public static class NodeMetadata {
+        private final String nodeId;
+        private final String hostname;
+        private final String clusterId;
+        private final long loadedAt;
+
+        NodeMetadata(String nodeId, @Nullable String hostname, @Nullable String clusterId, long loadedAt) {
+            this.nodeId = nodeId;
+            this.hostname = hostname;
+            this.clusterId = clusterId;
+            this.loadedAt = loadedAt;
+        }
+
+        public String getNodeId() {
+            return nodeId;
+        }
+
+        @Nullable
+        public String getHostname() {
+            return hostname;
+        }
+
+        @Nullable
+        public String getClusterId() {
+            return clusterId;
+        }
+
+        long getLoadedAt() {
+            return loadedAt;
+        }
+
+        boolean isComplete() {
+            return hostname != null && clusterId != null;
+        }
+    }
+}
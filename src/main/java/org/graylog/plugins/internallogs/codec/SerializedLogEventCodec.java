@@ -24,21 +24,19 @@ import org.apache.logging.log4j.ThreadContext;
 import org.apache.logging.log4j.core.LogEvent;
 import org.apache.logging.log4j.core.impl.ThrowableProxy;
 import org.apache.logging.log4j.core.net.Severity;
-import org.graylog2.cluster.Node;
-import org.graylog2.cluster.NodeNotFoundException;
-import org.graylog2.cluster.NodeService;
+import org.graylog.plugins.internallogs.log4j.ContextSnapshots;
+import org.graylog.plugins.internallogs.log4j.MessageParameters;
 import org.graylog2.plugin.Message;
-import org.graylog2.plugin.cluster.ClusterConfigService;
-import org.graylog2.plugin.cluster.ClusterId;
 import org.graylog2.plugin.configuration.Configuration;
 import org.graylog2.plugin.configuration.ConfigurationRequest;
 import org.graylog2.plugin.configuration.fields.BooleanField;
+import org.graylog2.plugin.configuration.fields.ConfigurationField;
+import org.graylog2.plugin.configuration.fields.TextField;
 import org.graylog2.plugin.inputs.annotations.Codec;
 import org.graylog2.plugin.inputs.annotations.ConfigClass;
 import org.graylog2.plugin.inputs.annotations.FactoryClass;
 import org.graylog2.plugin.inputs.codecs.AbstractCodec;
 import org.graylog2.plugin.journal.RawMessage;
-import org.graylog2.plugin.system.NodeId;
 import org.joda.time.DateTime;
 import org.joda.time.DateTimeZone;
 import org.slf4j.Logger;
@@ -49,9 +47,12 @@ import javax.annotation.Nullable;
 import javax.inject.Inject;
 import java.io.ByteArrayInputStream;
 import java.io.ObjectInputStream;
+import java.nio.ByteBuffer;
 import java.util.List;
 import java.util.Map;
 
+import static java.util.Objects.requireNonNull;
+
 @Codec(name = "serialized-logevent", displayName = "Serialized LogEvent")
 public class SerializedLogEventCodec extends AbstractCodec {
     private static final Logger LOG = LoggerFactory.getLogger(SerializedLogEventCodec.class);
@@ -60,81 +61,126 @@ public class SerializedLogEventCodec extends AbstractCodec {
     private static final String CK_INCLUDE_THREAD_CONTEXT = "include_thread_context";
     private static final String CK_INCLUDE_STACK_TRACE = "include_stack_trace";
     private static final String CK_INCLUDE_EXCEPTION_CAUSE = "include_exception_cause";
+    private static final String CK_INCLUDE_TEMPLATE = "include_template";
+    private static final String CK_INCLUDE_MESSAGE_PARAMETERS = "include_message_parameters";
+    private static final String CK_CLASSIFICATION_RULES = "classification_rules";
+    private static final long MAX_TEMPLATES = 10_000L;
 
     private final boolean includeSource;
     private final boolean includeThreadContext;
     private final boolean includeStackTrace;
     private final boolean includeExceptionCause;
+    private final boolean includeTemplate;
+    private final boolean includeMessageParameters;
+    private final MessageTemplates messageTemplates = new MessageTemplates(MAX_TEMPLATES);
+    private final MessageClassifier messageClassifier;
 
-    private final String clusterId;
-    private final String nodeId;
-    private final String hostname;
+    private final NodeMetadataCache nodeMetadataCache;
+    private final ContextSnapshots contextSnapshots;
 
     @Inject
     public SerializedLogEventCodec(@Assisted Configuration configuration,
-                                   NodeId nodeId,
-                                   NodeService nodeService,
-                                   ClusterConfigService clusterConfigService) {
+                                   NodeMetadataCache nodeMetadataCache,
+                                   ContextSnapshots contextSnapshots) {
         super(configuration);
         this.includeSource = configuration.getBoolean(CK_INCLUDE_SOURCE, true);
         this.includeThreadContext = configuration.getBoolean(CK_INCLUDE_THREAD_CONTEXT, true);
         this.includeStackTrace = configuration.getBoolean(CK_INCLUDE_STACK_TRACE, true);
         this.includeExceptionCause = configuration.getBoolean(CK_INCLUDE_EXCEPTION_CAUSE, true);
-
-        final ClusterId clusterIdBean = clusterConfigService.get(ClusterId.class);
-        this.clusterId = clusterIdBean == null ? null : clusterIdBean.clusterId();
-
-        this.nodeId = nodeId.toString();
-        String nodeHostname;
-        try {
-            final Node node = nodeService.byNodeId(nodeId);
-            nodeHostname = node.getHostname();
-        } catch (NodeNotFoundException e) {
-            nodeHostname = null;
-        }
-        this.hostname = nodeHostname;
+        this.includeTemplate = configuration.getBoolean(CK_INCLUDE_TEMPLATE, true);
+        this.includeMessageParameters = configuration.getBoolean(CK_INCLUDE_MESSAGE_PARAMETERS, false);
+        this.messageClassifier = MessageClassifier.parse(configuration.getString(CK_CLASSIFICATION_RULES));
+        this.nodeMetadataCache = requireNonNull(nodeMetadataCache);
+        this.contextSnapshots = requireNonNull(contextSnapshots);
     }
 
     @Nullable
     @Override
     public Message decode(@Nonnull RawMessage rawMessage) {
-        try (final ByteArrayInputStream inputStream = new ByteArrayInputStream(rawMessage.getPayload());
-             final ObjectInputStream objectInputStream = new ObjectInputStream(inputStream)) {
-            final LogEvent logEvent = (LogEvent) objectInputStream.readObject();
-            return processLogEvent(logEvent);
+        final byte[] payload = rawMessage.getPayload();
+        final ByteBuffer buffer = ByteBuffer.wrap(payload);
+        Map<String, String> contextSnapshot = null;
+        if (ContextSnapshots.hasFrameHeader(payload)) {
+            final long snapshotId = ContextSnapshots.readSnapshotId(payload);
+            contextSnapshot = contextSnapshots.get(snapshotId);
+            if (contextSnapshot == null) {
+                LOG.debug("Context snapshot {} isn't available anymore, decoding log event without thread context", snapshotId);
+            }
+            buffer.position(ContextSnapshots.FRAME_HEADER_LENGTH);
+        }
+
+        try {
+            final List<String> parameters = MessageParameters.hasFrame(buffer) ? MessageParameters.readFrame(buffer) : null;
+            try (final ByteArrayInputStream inputStream = new ByteArrayInputStream(payload, buffer.position(), buffer.remaining());
+                 final ObjectInputStream objectInputStream = new LogEventInputStream(inputStream)) {
+                final LogEvent logEvent = (LogEvent) objectInputStream.readObject();
+                return processLogEvent(logEvent, contextSnapshot, parameters);
+            }
         } catch (Exception e) {
             LOG.error("Couldn't deserialize log event", e);
             return null;
         }
     }
 
-    private Message processLogEvent(LogEvent logEvent) {
-        final String formattedMessage = logEvent.getMessage().getFormattedMessage();
+    private Message processLogEvent(LogEvent logEvent,
+                                    @Nullable Map<String, String> contextSnapshot,
+                                    @Nullable List<String> parameters) {
+        final org.apache.logging.log4j.message.Message logMessage = logEvent.getMessage();
+        final String formattedMessage = logMessage.getFormattedMessage();
         final DateTime timestamp = new DateTime(logEvent.getTimeMillis(), DateTimeZone.UTC);
-        final Message message = new Message(formattedMessage, hostname, timestamp);
+        final NodeMetadataCache.NodeMetadata nodeMetadata = nodeMetadataCache.get();
+        final Message message = new Message(formattedMessage, nodeMetadata.getHostname(), timestamp);
 
         final Level level = logEvent.getLevel();
         message.addField(Message.FIELD_LEVEL, Severity.getSeverity(level).getCode());
         message.addField("log4j_level", level.name());
         message.addField("log4j_level_int", level.intLevel());
 
-        message.addField("node_id", nodeId);
+        message.addField("node_id", nodeMetadata.getNodeId());
+        final String clusterId = nodeMetadata.getClusterId();
         if (clusterId != null) {
             message.addField("cluster_id", clusterId);
         }
-        message.addField("logger_name", logEvent.getLoggerName());
+        final String loggerName = logEvent.getLoggerName();
+        message.addField("logger_name", loggerName);
         message.addField("thread_id", logEvent.getThreadId());
         message.addField("thread_name", logEvent.getThreadName());
         message.addField("thread_priority", logEvent.getThreadPriority());
         message.addField("timestamp_nanos", logEvent.getNanoTime());
 
+        if (includeTemplate) {
+            final String template = logMessage.getFormat();
+            // Messages without a pattern (e.g. SimpleMessage) return their text, which isn't a template
+            if (template != null && !template.equals(formattedMessage)) {
+                message.addField("message_template", template);
+                message.addField("template_id", messageTemplates.templateId(template));
+            }
+        }
+
+        if (includeMessageParameters && parameters != null) {
+            for (int i = 0; i < parameters.size(); i++) {
+                message.addField("message_param_" + i, parameters.get(i));
+            }
+        }
+
+        if (messageClassifier != null) {
+            final String category = messageClassifier.classify(loggerName, formattedMessage);
+            if (category != null) {
+                message.addField("category", category);
+            }
+        }
+
         final Marker marker = logEvent.getMarker();
         if (marker != null) {
             message.addField("marker", marker.getName());
         }
 
         if (includeThreadContext) {
-            logEvent.getContextData().forEach((k, v ) -> message.addField("context_" + k, v));
+            if (contextSnapshot == null) {
+                logEvent.getContextData().forEach((k, v) -> message.addField("context_" + k, v));
+            } else {
+                contextSnapshot.forEach((k, v) -> message.addField("context_" + k, v));
+            }
 
             // Guard against https://issues.apache.org/jira/browse/LOG4J2-1530
             final ThreadContext.ContextStack contextStack = logEvent.getContextStack();
@@ -210,6 +256,23 @@ public class SerializedLogEventCodec extends AbstractCodec {
                     "Include exception causes",
                     true,
                     "Whether to include information about the exception cause."));
+            requestedConfiguration.addField(new BooleanField(
+                    CK_INCLUDE_TEMPLATE,
+                    "Include message template",
+                    true,
+                    "Whether to include the unformatted message pattern and its template ID for grouping similar messages."));
+            requestedConfiguration.addField(new BooleanField(
+                    CK_INCLUDE_MESSAGE_PARAMETERS,
+                    "Include message parameters",
+                    false,
+                    "Whether to include the parameters of the message pattern as separate fields. They are converted to strings when the message is logged."));
+            requestedConfiguration.addField(new TextField(
+                    CK_CLASSIFICATION_RULES,
+                    "Classification rules",
+                    "",
+                    "Rules for the \"category\" field, one per line as \"category|logger prefix|keyword\", e.g. \"es_timeout|org.graylog2.indexer|timed out\". Empty parts match everything, keywords are case-insensitive and the first matching rule wins.",
+                    ConfigurationField.Optional.OPTIONAL,
+                    TextField.Attribute.TEXTAREA));
 
             return requestedConfiguration;
         }
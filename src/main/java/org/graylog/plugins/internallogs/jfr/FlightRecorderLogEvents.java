@@ -0,0 +1,237 @@
+/**
+ * Graylog Internal Logs Plugin - Internal Logs plugin for Graylog
+ * Copyright © 2016 Graylog, Inc. (hello@graylog.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.internallogs.jfr;
+
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.message.Message;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.lang.annotation.Annotation;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Records internal log events as Java Flight Recorder events, so they show up next to GC, safepoint and lock
+ * events in the same recording.
+ * <p>
+ * The event type is defined at runtime via {@code jdk.jfr.EventFactory}, because the plugin is built for Java 8.
+ * If the JVM doesn't provide the JFR API, recording is a no-op. Events are emitted on the logging thread without
+ * stack traces, and only while at least one input has enabled them and a recording has the event type enabled.
+ * Whether a recording has enabled the event type is cached and refreshed whenever the state of a recording changes,
+ * and at least once per second, so no event is allocated while nothing is being recorded.
+ * <p>
+ * The first failure to emit an event is logged and disables the recording of log events until the next restart.
+ */
+@Singleton
+public class FlightRecorderLogEvents {
+    private static final Logger LOG = LoggerFactory.getLogger(FlightRecorderLogEvents.class);
+
+    static final String EVENT_NAME = "org.graylog.plugins.internallogs.LogEvent";
+    static final String[] FIELDS = {"level", "loggerName", "threadName", "messageTemplate", "exceptionClass"};
+
+    private final AtomicInteger users = new AtomicInteger();
+    private final AtomicBoolean failed = new AtomicBoolean(false);
+    private final EventType eventType;
+
+    @Inject
+    public FlightRecorderLogEvents() {
+        this.eventType = EventType.create();
+    }
+
+    public boolean isAvailable() {
+        return eventType != null && !failed.get();
+    }
+
+    /**
+     * @return {@code true} if emitting an event has failed and log events aren't recorded anymore
+     */
+    public boolean hasFailed() {
+        return failed.get();
+    }
+
+    public void enable() {
+        if (users.getAndIncrement() == 0 && eventType == null) {
+            LOG.warn("Java Flight Recorder events for internal log messages aren't supported by this JVM.");
+        }
+    }
+
+    public void disable() {
+        users.updateAndGet(count -> Math.max(0, count - 1));
+    }
+
+    public boolean isEnabled() {
+        return users.get() > 0;
+    }
+
+    public void record(LogEvent event) {
+        if (users.get() == 0 || !isAvailable()) {
+            return;
+        }
+        try {
+            if (eventType.isRecorded()) {
+                eventType.emit(event);
+            }
+        } catch (Throwable t) {
+            if (failed.compareAndSet(false, true)) {
+                // Log4j doesn't hand this message back to the appender which is currently calling us
+                LOG.warn("Couldn't record internal log message as Java Flight Recorder event, disabling these events", t);
+            }
+        }
+    }
+
+    /**
+     * Method handles for the reflectively defined JFR event type. All handles are adapted to exact types which
+     * only use {@link Object} in place of the JFR classes, so they can be called with {@link MethodHandle#invokeExact}.
+     */
+    private static final class EventType {
+        private static final long RECHECK_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1L);
+
+        // ()Object
+        private final MethodHandle newEvent;
+        // (Object, int, Object)void
+        private final MethodHandle set;
+        // (Object)void
+        private final MethodHandle commit;
+        // ()boolean
+        private final MethodHandle isEnabled;
+
+        private volatile boolean stale = true;
+        private volatile boolean recorded = false;
+        private volatile long lastCheck;
+
+        private EventType(MethodHandle newEvent, MethodHandle set, MethodHandle commit, MethodHandle isEnabled) {
+            this.newEvent = newEvent;
+            this.set = set;
+            this.commit = commit;
+            this.isEnabled = isEnabled;
+        }
+
+        @Nullable
+        private static EventType create() {
+            try {
+                final ClassLoader classLoader = ClassLoader.getSystemClassLoader();
+                final Class<?> eventFactoryClass = Class.forName("jdk.jfr.EventFactory", true, classLoader);
+                final Class<?> eventClass = Class.forName("jdk.jfr.Event", true, classLoader);
+                final Class<?> eventTypeClass = Class.forName("jdk.jfr.EventType", true, classLoader);
+                final Class<?> annotationElementClass = Class.forName("jdk.jfr.AnnotationElement", true, classLoader);
+                final Class<?> valueDescriptorClass = Class.forName("jdk.jfr.ValueDescriptor", true, classLoader);
+                final Class<?> flightRecorderClass = Class.forName("jdk.jfr.FlightRecorder", true, classLoader);
+                final Class<?> listenerClass = Class.forName("jdk.jfr.FlightRecorderListener", true, classLoader);
+                final Constructor<?> annotationElement = annotationElementClass.getConstructor(Class.class, Object.class);
+                final Constructor<?> valueDescriptor = valueDescriptorClass.getConstructor(Class.class, String.class);
+
+                final List<Object> annotations = new ArrayList<>();
+                annotations.add(annotationElement.newInstance(annotation("jdk.jfr.Name", classLoader), EVENT_NAME));
+                annotations.add(annotationElement.newInstance(annotation("jdk.jfr.Label", classLoader), "Internal Log Message"));
+                annotations.add(annotationElement.newInstance(annotation("jdk.jfr.Category", classLoader), new String[]{"Graylog", "Internal Logs"}));
+                annotations.add(annotationElement.newInstance(annotation("jdk.jfr.StackTrace", classLoader), false));
+
+                final List<Object> fields = new ArrayList<>(FIELDS.length);
+                for (String field : FIELDS) {
+                    fields.add(valueDescriptor.newInstance(String.class, field));
+                }
+
+                final Object eventFactory = eventFactoryClass.getMethod("create", List.class, List.class)
+                        .invoke(null, annotations, fields);
+                final Object eventType = eventFactoryClass.getMethod("getEventType").invoke(eventFactory);
+
+                final MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+                final EventType result = new EventType(
+                        lookup.findVirtual(eventFactoryClass, "newEvent", MethodType.methodType(eventClass))
+                                .bindTo(eventFactory)
+                                .asType(MethodType.methodType(Object.class)),
+                        lookup.findVirtual(eventClass, "set", MethodType.methodType(void.class, int.class, Object.class))
+                                .asType(MethodType.methodType(void.class, Object.class, int.class, Object.class)),
+                        lookup.findVirtual(eventClass, "commit", MethodType.methodType(void.class))
+                                .asType(MethodType.methodType(void.class, Object.class)),
+                        lookup.findVirtual(eventTypeClass, "isEnabled", MethodType.methodType(boolean.class))
+                                .bindTo(eventType));
+
+                final Object listener = Proxy.newProxyInstance(classLoader, new Class<?>[]{listenerClass}, result.listener());
+                flightRecorderClass.getMethod("addListener", listenerClass).invoke(null, listener);
+                return result;
+            } catch (ReflectiveOperationException | LinkageError | RuntimeException e) {
+                LOG.debug("Java Flight Recorder API isn't available", e);
+                return null;
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        private static Class<? extends Annotation> annotation(String name, ClassLoader classLoader) throws ClassNotFoundException {
+            return (Class<? extends Annotation>) Class.forName(name, true, classLoader);
+        }
+
+        /**
+         * Marks the cached state as stale whenever the recorder is initialized or the state of a recording changes.
+         * The check itself is deferred to the next log event, so the recorder's notification thread can't fail.
+         */
+        private InvocationHandler listener() {
+            return (proxy, method, args) -> {
+                switch (method.getName()) {
+                    case "equals":
+                        return proxy == args[0];
+                    case "hashCode":
+                        return System.identityHashCode(proxy);
+                    case "toString":
+                        return "FlightRecorderListener[" + EVENT_NAME + "]";
+                    default:
+                        stale = true;
+                        return null;
+                }
+            };
+        }
+
+        private boolean isRecorded() throws Throwable {
+            final long now = System.nanoTime();
+            // Settings of a running recording can change without a state change
+            if (stale || now - lastCheck >= RECHECK_INTERVAL_NANOS) {
+                stale = false;
+                lastCheck = now;
+                recorded = (boolean) isEnabled.invokeExact();
+            }
+            return recorded;
+        }
+
+        private void emit(LogEvent logEvent) throws Throwable {
+            final Object event = (Object) newEvent.invokeExact();
+            final Message message = logEvent.getMessage();
+            // Unlike the ThrowableProxy, the plain exception is readily available
+            final Throwable thrown = logEvent.getThrown();
+            set.invokeExact(event, 0, (Object) logEvent.getLevel().name());
+            set.invokeExact(event, 1, (Object) logEvent.getLoggerName());
+            set.invokeExact(event, 2, (Object) logEvent.getThreadName());
+            set.invokeExact(event, 3, (Object) (message == null ? null : message.getFormat()));
+            set.invokeExact(event, 4, (Object) (thrown == null ? null : thrown.getClass().getName()));
+            // Checks the enabled state and thresholds of the event itself
+            commit.invokeExact(event);
+        }
+    }
+}
@@ -0,0 +1,150 @@
+/**
+ * Graylog Internal Logs Plugin - Internal Logs plugin for Graylog
+ * Copyright © 2016 Graylog, Inc. (hello@graylog.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.internallogs.log4j;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import org.apache.logging.log4j.util.ReadOnlyStringMap;
+import org.apache.logging.log4j.util.StringMap;
+
+import javax.annotation.Nullable;
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Deduplicates the context data of log events which are written into the journal and decoded in the same JVM.
+ * <p>
+ * Each distinct context map gets a snapshot ID. Instead of serializing the map with every log event, the appender
+ * prefixes the serialized event (without context data) with a frame header containing the snapshot ID, and the
+ * codec looks up the map by its ID again. Frozen context maps, e.g. from Log4j's copy-on-write thread context, are
+ * recognized by identity without comparing their contents.
+ * <p>
+ * Snapshots are kept in memory only, so payloads which are decoded after a restart of the node or after their
+ * snapshot has been evicted lose their context data. Such misses are counted and reported by inputs which share
+ * context snapshots, which they don't by default.
+ */
+@Singleton
+public class ContextSnapshots {
+    public static final long NO_SNAPSHOT = 0L;
+    private static final byte[] MAGIC = {(byte) 'I', (byte) 'L', (byte) 'C', 1};
+    public static final int FRAME_HEADER_LENGTH = MAGIC.length + Long.BYTES;
+    private static final long DEFAULT_MAXIMUM_SIZE = 1024L;
+
+    private final Cache<Map<String, String>, Long> idsByContent;
+    private final Cache<Long, Map<String, String>> contentsById;
+    private final AtomicLong nextId = new AtomicLong(NO_SNAPSHOT + 1L);
+    private final LongAdder misses = new LongAdder();
+    private volatile LastSnapshot lastSnapshot = new LastSnapshot(null, NO_SNAPSHOT);
+
+    @Inject
+    public ContextSnapshots() {
+        this(DEFAULT_MAXIMUM_SIZE);
+    }
+
+    @VisibleForTesting
+    ContextSnapshots(long maximumSize) {
+        this.idsByContent = CacheBuilder.newBuilder().maximumSize(maximumSize).build();
+        // Keep the contents around longer than their IDs are handed out, so pending payloads can still be decoded
+        this.contentsById = CacheBuilder.newBuilder().maximumSize(2L * maximumSize).build();
+    }
+
+    /**
+     * @return the snapshot ID of the given context data or {@link #NO_SNAPSHOT} if it's empty
+     */
+    public long snapshotId(@Nullable ReadOnlyStringMap contextData) {
+        if (contextData == null || contextData.isEmpty()) {
+            return NO_SNAPSHOT;
+        }
+
+        final boolean frozen = contextData instanceof StringMap && ((StringMap) contextData).isFrozen();
+        final LastSnapshot last = lastSnapshot;
+        if (frozen && last.contextData == contextData && contentsById.getIfPresent(last.id) != null) {
+            return last.id;
+        }
+
+        final Map<String, String> content = contextData.toMap();
+        Long id = idsByContent.getIfPresent(content);
+        if (id == null || contentsById.getIfPresent(id) == null) {
+            id = nextId.getAndIncrement();
+            contentsById.put(id, Collections.unmodifiableMap(content));
+            idsByContent.put(content, id);
+        }
+        if (frozen) {
+            lastSnapshot = new LastSnapshot(contextData, id);
+        }
+        return id;
+    }
+
+    /**
+     * @return the context data of the given snapshot or {@code null} if it isn't available (anymore)
+     */
+    @Nullable
+    public Map<String, String> get(long snapshotId) {
+        final Map<String, String> content = contentsById.getIfPresent(snapshotId);
+        if (content == null) {
+            misses.increment();
+        }
+        return content;
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * Writes the frame header referencing the given snapshot into the beginning of the given buffer.
+     */
+    static void writeFrameHeader(byte[] buffer, long snapshotId) {
+        ByteBuffer.wrap(buffer).put(MAGIC).putLong(snapshotId);
+    }
+
+    /**
+     * @return {@code true} if the payload starts with a frame header referencing a context snapshot
+     */
+    public static boolean hasFrameHeader(byte[] payload) {
+        if (payload.length < FRAME_HEADER_LENGTH) {
+            return false;
+        }
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (payload[i] != MAGIC[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public static long readSnapshotId(byte[] payload) {
+        return ByteBuffer.wrap(payload, MAGIC.length, Long.BYTES).getLong();
+    }
+
+    private static final class LastSnapshot {
+        private final ReadOnlyStringMap contextData;
+        private final long id;
+
+        private LastSnapshot(ReadOnlyStringMap contextData, long id) {
+            this.contextData = contextData;
+            this.id = id;
+        }
+    }
+}
@@ -22,36 +22,215 @@ import org.apache.logging.log4j.core.Filter;
 import org.apache.logging.log4j.core.LogEvent;
 import org.apache.logging.log4j.core.appender.AbstractAppender;
 import org.apache.logging.log4j.core.filter.ThresholdFilter;
+import org.apache.logging.log4j.core.impl.ContextDataFactory;
+import org.apache.logging.log4j.core.impl.Log4jLogEvent;
 import org.apache.logging.log4j.core.layout.SerializedLayout;
+import org.apache.logging.log4j.util.StringMap;
 
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.function.Consumer;
 
 import static java.util.Objects.requireNonNull;
 
 /**
- * A Log4J appender that calls a given {@link Consumer} for each appended {@link LogEvent}.
+ * A Log4J appender that calls the registered {@link SerializedLogEventConsumer consumers} for each appended {@link LogEvent}.
+ * <p>
+ * Each event is serialized at most once per format and the resulting bytes are handed to every consumer whose
+ * threshold matches the level of the event. Consumers may opt into sharing the context data via
+ * {@link ContextSnapshots}, in which case they receive the event without context data, prefixed with a reference to
+ * the context snapshot, and into a {@link MessageParameters} frame with the parameters of the message.
+ * <p>
+ * An optional observer is handed every unserialized {@link LogEvent} reaching the appender first, regardless of the
+ * thresholds of the consumers, e.g. for collecting statistics about loggers which aren't indexed. Afterwards the
+ * {@link OverheadController} may degrade or drop events matching any consumer, and is told how long appending took.
+ * Without an observer, the appender's own {@link ThresholdFilter} uses the most verbose threshold of all consumers.
  */
 public class DirectConsumingAppender extends AbstractAppender {
     private static final SerializedLayout LAYOUT = SerializedLayout.createLayout();
     private static final byte[] HEADER = LAYOUT.getHeader();
+    private static final StringMap EMPTY_CONTEXT_DATA = ContextDataFactory.createContextData();
+    private static final int SHARE_CONTEXT = 1;
+    private static final int INCLUDE_PARAMETERS = 2;
+    private static final int RECORD_FORMATS = 4;
+    private static final Consumer<LogEvent> NO_OBSERVER = logEvent -> {};
 
-    private final Consumer<byte[]> logEventConsumer;
+    static {
+        EMPTY_CONTEXT_DATA.freeze();
+    }
+
+    private final List<Subscriber> subscribers = new CopyOnWriteArrayList<>();
+    private final Consumer<LogEvent> logEventObserver;
+    private final OverheadController overheadController;
+    private final ContextSnapshots contextSnapshots;
+    private volatile Level consumerThreshold = Level.OFF;
 
     public DirectConsumingAppender(String name, Consumer<byte[]> logEventConsumer, Level threshold) {
-        super(name, ThresholdFilter.createFilter(threshold, Filter.Result.ACCEPT, Filter.Result.DENY), LAYOUT, false);
-        this.logEventConsumer = requireNonNull(logEventConsumer);
+        this(name, logEventConsumer, threshold, NO_OBSERVER);
+    }
+
+    public DirectConsumingAppender(String name, Consumer<byte[]> logEventConsumer, Level threshold, Consumer<LogEvent> logEventObserver) {
+        this(name, logEventObserver);
+        requireNonNull(logEventConsumer);
+        addConsumer((level, serializedLogEvent) -> logEventConsumer.accept(serializedLogEvent), threshold);
+    }
+
+    public DirectConsumingAppender(String name, Consumer<LogEvent> logEventObserver) {
+        this(name, logEventObserver, new OverheadController());
+    }
+
+    public DirectConsumingAppender(String name, Consumer<LogEvent> logEventObserver, OverheadController overheadController) {
+        this(name, logEventObserver, overheadController, new ContextSnapshots());
+    }
+
+    public DirectConsumingAppender(String name,
+                                   Consumer<LogEvent> logEventObserver,
+                                   OverheadController overheadController,
+                                   ContextSnapshots contextSnapshots) {
+        super(name, createFilter(Level.OFF), LAYOUT, false);
+        this.logEventObserver = requireNonNull(logEventObserver);
+        this.overheadController = requireNonNull(overheadController);
+        this.contextSnapshots = requireNonNull(contextSnapshots);
+    }
+
+    private static Filter createFilter(Level threshold) {
+        return ThresholdFilter.createFilter(threshold, Filter.Result.ACCEPT, Filter.Result.DENY);
+    }
+
+    /**
+     * Registers a consumer for all log events at or above the given threshold.
+     *
+     * @return the number of registered consumers
+     */
+    public int addConsumer(SerializedLogEventConsumer logEventConsumer, Level threshold) {
+        return addConsumer(logEventConsumer, threshold, false);
+    }
+
+    /**
+     * Registers a consumer for all log events at or above the given threshold.
+     *
+     * @param shareContext whether the consumer receives events referencing {@link ContextSnapshots context snapshots}
+     * @return the number of registered consumers
+     */
+    public int addConsumer(SerializedLogEventConsumer logEventConsumer, Level threshold, boolean shareContext) {
+        return addConsumer(logEventConsumer, threshold, shareContext, false);
+    }
+
+    /**
+     * Registers a consumer for all log events at or above the given threshold.
+     *
+     * @param shareContext      whether the consumer receives events referencing {@link ContextSnapshots context snapshots}
+     * @param includeParameters whether the consumer receives the {@link MessageParameters message parameters}
+     * @return the number of registered consumers
+     */
+    public synchronized int addConsumer(SerializedLogEventConsumer logEventConsumer, Level threshold,
+                                        boolean shareContext, boolean includeParameters) {
+        subscribers.add(new Subscriber(requireNonNull(logEventConsumer), requireNonNull(threshold), shareContext, includeParameters));
+        updateFilter();
+        return subscribers.size();
+    }
+
+    /**
+     * Removes a previously registered consumer.
+     *
+     * @return the number of remaining consumers
+     */
+    public synchronized int removeConsumer(SerializedLogEventConsumer logEventConsumer) {
+        subscribers.removeIf(subscriber -> subscriber.consumer == logEventConsumer);
+        updateFilter();
+        return subscribers.size();
+    }
+
+    private void updateFilter() {
+        Level mostVerbose = Level.OFF;
+        for (Subscriber subscriber : subscribers) {
+            if (subscriber.threshold.isLessSpecificThan(mostVerbose)) {
+                mostVerbose = subscriber.threshold;
+            }
+        }
+        consumerThreshold = mostVerbose;
+        removeFilter(getFilter());
+        // The observer sees all events, the consumers are checked individually when appending
+        addFilter(createFilter(logEventObserver == NO_OBSERVER ? mostVerbose : Level.ALL));
     }
 
     @Override
     public synchronized void append(LogEvent event) {
         if (!isFiltered(event)) {
-            final byte[] content = LAYOUT.toByteArray(event);
-            final byte[] record = new byte[HEADER.length + content.length];
+            final long start = System.nanoTime();
+            final long cpuStart = overheadController.currentThreadCpuTime();
+            logEventObserver.accept(event);
+
+            final LogEvent admittedEvent = event.getLevel().isMoreSpecificThan(consumerThreshold)
+                    ? overheadController.admit(event)
+                    : null;
+            if (admittedEvent != null) {
+                final Level level = admittedEvent.getLevel();
+                byte[][] records = null;
+                for (Subscriber subscriber : subscribers) {
+                    if (level.isMoreSpecificThan(subscriber.threshold)) {
+                        if (records == null) {
+                            records = new byte[RECORD_FORMATS][];
+                        }
+                        if (records[subscriber.format] == null) {
+                            records[subscriber.format] = toRecord(admittedEvent, subscriber.format);
+                        }
+                        subscriber.consumer.accept(level, records[subscriber.format]);
+                    }
+                }
+            }
+            overheadController.recordAppendTime(System.nanoTime() - start);
+            if (cpuStart >= 0L) {
+                overheadController.recordAppendCpuTime(overheadController.currentThreadCpuTime() - cpuStart);
+            }
+        }
+    }
+
+    private byte[] toRecord(LogEvent event, int format) {
+        final long snapshotId = (format & SHARE_CONTEXT) != 0
+                ? contextSnapshots.snapshotId(event.getContextData())
+                : ContextSnapshots.NO_SNAPSHOT;
+        final byte[] parameterFrame = (format & INCLUDE_PARAMETERS) != 0 ? MessageParameters.toFrame(event.getMessage()) : null;
+
+        LogEvent serializableEvent = event;
+        if (snapshotId != ContextSnapshots.NO_SNAPSHOT || event.getThrown() != null) {
+            final Log4jLogEvent.Builder builder = new Log4jLogEvent.Builder(event);
+            if (snapshotId != ContextSnapshots.NO_SNAPSHOT) {
+                builder.setContextData(EMPTY_CONTEXT_DATA);
+            }
+            if (event.getThrown() != null) {
+                // Only the ThrowableProxy is decoded, because the Throwable itself might be of any class
+                builder.setThrownProxy(event.getThrownProxy()).setThrown(null);
+            }
+            serializableEvent = builder.build();
+        }
+
+        final byte[] content = LAYOUT.toByteArray(serializableEvent);
+        final int contextFrameLength = snapshotId == ContextSnapshots.NO_SNAPSHOT ? 0 : ContextSnapshots.FRAME_HEADER_LENGTH;
+        final int parameterFrameLength = parameterFrame == null ? 0 : parameterFrame.length;
+        final int offset = contextFrameLength + parameterFrameLength;
+        final byte[] record = new byte[offset + HEADER.length + content.length];
+
+        if (snapshotId != ContextSnapshots.NO_SNAPSHOT) {
+            ContextSnapshots.writeFrameHeader(record, snapshotId);
+        }
+        if (parameterFrame != null) {
+            System.arraycopy(parameterFrame, 0, record, contextFrameLength, parameterFrameLength);
+        }
+        System.arraycopy(HEADER, 0, record, offset, HEADER.length);
+        System.arraycopy(content, 0, record, offset + HEADER.length, content.length);
+        return record;
+    }
 
-            System.arraycopy(HEADER, 0, record, 0, HEADER.length);
-            System.arraycopy(content, 0, record, HEADER.length, content.length);
+    private static final class Subscriber {
+        private final SerializedLogEventConsumer consumer;
+        private final Level threshold;
+        private final int format;
 
-            logEventConsumer.accept(record);
+        private Subscriber(SerializedLogEventConsumer consumer, Level threshold, boolean shareContext, boolean includeParameters) {
+            this.consumer = consumer;
+            this.threshold = threshold;
+            this.format = (shareContext ? SHARE_CONTEXT : 0) | (includeParameters ? INCLUDE_PARAMETERS : 0);
         }
     }
-}
\ No newline at end of file
+}
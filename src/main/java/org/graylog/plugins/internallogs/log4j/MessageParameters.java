@@ -0,0 +1,117 @@
+/**
+ * Graylog Internal Logs Plugin - Internal Logs plugin for Graylog
+ * Copyright © 2016 Graylog, Inc. (hello@graylog.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.internallogs.log4j;
+
+import org.apache.logging.log4j.message.Message;
+
+import javax.annotation.Nullable;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Frame carrying the parameters of a log message as strings in front of the serialized log event.
+ * <p>
+ * Log4j messages don't serialize their parameters (e.g. the arguments of a
+ * {@link org.apache.logging.log4j.message.ParameterizedMessage} are transient), so the appender converts them
+ * with {@link String#valueOf(Object)} on the logging thread for consumers which asked for them.
+ */
+public final class MessageParameters {
+    private static final byte[] MAGIC = {(byte) 'I', (byte) 'L', (byte) 'P', 1};
+    private static final int NULL_LENGTH = -1;
+
+    private MessageParameters() {
+    }
+
+    /**
+     * @return the frame containing the parameters of the given message or {@code null} if it has none
+     */
+    @Nullable
+    static byte[] toFrame(Message message) {
+        final Object[] parameters = message.getParameters();
+        if (parameters == null || parameters.length == 0) {
+            return null;
+        }
+
+        final byte[][] values = new byte[parameters.length][];
+        int length = MAGIC.length + Integer.BYTES;
+        for (int i = 0; i < parameters.length; i++) {
+            final Object parameter = parameters[i];
+            values[i] = parameter == null ? null : String.valueOf(parameter).getBytes(StandardCharsets.UTF_8);
+            length += Integer.BYTES + (values[i] == null ? 0 : values[i].length);
+        }
+
+        final ByteBuffer buffer = ByteBuffer.allocate(length).put(MAGIC).putInt(values.length);
+        for (byte[] value : values) {
+            if (value == null) {
+                buffer.putInt(NULL_LENGTH);
+            } else {
+                buffer.putInt(value.length).put(value);
+            }
+        }
+        return buffer.array();
+    }
+
+    /**
+     * @return {@code true} if the remaining bytes of the buffer start with a frame of message parameters
+     */
+    public static boolean hasFrame(ByteBuffer buffer) {
+        if (buffer.remaining() < MAGIC.length + Integer.BYTES) {
+            return false;
+        }
+        final int position = buffer.position();
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (buffer.get(position + i) != MAGIC[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Reads the frame of message parameters at the current position of the buffer and moves the position behind it.
+     *
+     * @throws IllegalArgumentException           if the number of parameters or the length of a parameter is invalid,
+     *                                            e.g. because the frame is truncated
+     * @throws java.nio.BufferUnderflowException if the frame is truncated within a number or length
+     */
+    public static List<String> readFrame(ByteBuffer buffer) {
+        buffer.position(buffer.position() + MAGIC.length);
+        final int count = buffer.getInt();
+        if (count < 0 || count > buffer.remaining() / Integer.BYTES) {
+            throw new IllegalArgumentException("Invalid number of message parameters: " + count);
+        }
+
+        final List<String> parameters = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            final int length = buffer.getInt();
+            if (length == NULL_LENGTH) {
+                parameters.add(null);
+            } else if (length < 0 || length > buffer.remaining()) {
+                throw new IllegalArgumentException("Invalid length of message parameter " + i + ": " + length);
+            } else {
+                final byte[] value = new byte[length];
+                buffer.get(value);
+                parameters.add(new String(value, StandardCharsets.UTF_8));
+            }
+        }
+        return Collections.unmodifiableList(parameters);
+    }
+}
@@ -0,0 +1,370 @@
+/**
+ * Graylog Internal Logs Plugin - Internal Logs plugin for Graylog
+ * Copyright © 2016 Graylog, Inc. (hello@graylog.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.internallogs.log4j;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.impl.ContextDataFactory;
+import org.apache.logging.log4j.core.impl.Log4jLogEvent;
+import org.apache.logging.log4j.core.impl.ThrowableProxy;
+import org.apache.logging.log4j.util.StringMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import javax.inject.Singleton;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Field;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+import java.util.function.LongSupplier;
+
+/**
+ * Keeps the overhead of the internal logs appender within the budgets configured by the transports.
+ * <p>
+ * The average time spent in the appender per event, the share of the node's CPU time spent in the appender and the
+ * queue depths of the transports are evaluated once per window. The CPU time of the logging threads is only measured
+ * while a CPU budget is configured. While a budget is exceeded, the controller steps down one {@link Step} per window, each step adding to the
+ * degradation of the previous one. After {@link #RECOVERY_WINDOWS} consecutive windows well within budget it steps
+ * back up again. Every transition is logged once.
+ */
+@Singleton
+public class OverheadController {
+    private static final Logger LOG = LoggerFactory.getLogger(OverheadController.class);
+
+    @VisibleForTesting
+    static final int RECOVERY_WINDOWS = 3;
+    private static final long WINDOW_MILLIS = TimeUnit.SECONDS.toMillis(1L);
+    private static final int TRUNCATED_STACK_TRACE_DEPTH = 5;
+    private static final int SAMPLING_RATE = 10;
+    private static final ThreadMXBean THREAD_MX_BEAN = ManagementFactory.getThreadMXBean();
+    @Nullable
+    private static final Field THROWABLE_PROXY_NAME = throwableProxyNameField();
+
+    public enum Step {
+        /**
+         * Pass events through unchanged.
+         */
+        NORMAL,
+        /**
+         * Drop the source location of events.
+         */
+        NO_SOURCE,
+        /**
+         * Additionally replace stack traces with a truncated copy without causes, keeping the exception class.
+         */
+        TRUNCATED_TRACES,
+        /**
+         * Additionally drop all events less severe than {@link Level#WARN}.
+         */
+        RAISED_THRESHOLD,
+        /**
+         * Additionally keep only one in {@value #SAMPLING_RATE} events less severe than {@link Level#ERROR}.
+         */
+        SAMPLING
+    }
+
+    private final Map<Object, Budget> budgets = new ConcurrentHashMap<>();
+    private final LongSupplier nanoClock;
+    private final int processors;
+    private final LongAdder appendedEvents = new LongAdder();
+    private final LongAdder appendNanos = new LongAdder();
+    private final LongAdder appendCpuNanos = new LongAdder();
+    private final AtomicLong sampleCounter = new AtomicLong();
+    private final AtomicLong transitions = new AtomicLong();
+    private volatile Step step = Step.NORMAL;
+    private volatile boolean measureCpuTime = false;
+    private int calmWindows = 0;
+    private long windowStart;
+    private ScheduledExecutorService scheduler;
+
+    public OverheadController() {
+        this(System::nanoTime, Runtime.getRuntime().availableProcessors());
+    }
+
+    @VisibleForTesting
+    OverheadController(LongSupplier nanoClock, int processors) {
+        this.nanoClock = nanoClock;
+        this.processors = Math.max(1, processors);
+        this.windowStart = nanoClock.getAsLong();
+    }
+
+    public void addBudget(Object owner, long maxAppendNanos, int maxQueuePercent, IntSupplier queueDepth, int queueCapacity) {
+        addBudget(owner, maxAppendNanos, 0, maxQueuePercent, queueDepth, queueCapacity);
+    }
+
+    /**
+     * @param maxAppendNanos  maximum average time spent in the appender per event, or 0 to disable this budget
+     * @param maxCpuPercent   maximum share of the CPU time of all processors spent in the appender, or 0 to disable
+     *                        this budget
+     * @param maxQueuePercent maximum fill level of the queue, or 0 to disable this budget
+     */
+    public synchronized void addBudget(Object owner, long maxAppendNanos, int maxCpuPercent, int maxQueuePercent, IntSupplier queueDepth, int queueCapacity) {
+        if (maxCpuPercent > 0 && !THREAD_MX_BEAN.isCurrentThreadCpuTimeSupported()) {
+            LOG.warn("Thread CPU time isn't supported by this JVM, ignoring the CPU budget of the internal logs appender");
+        }
+        budgets.put(owner, new Budget(maxAppendNanos, maxCpuPercent, maxQueuePercent, queueDepth, queueCapacity));
+        updateMeasureCpuTime();
+        if (scheduler == null) {
+            scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                    .setNameFormat("internal-logs-overhead-controller-%d")
+                    .setDaemon(true)
+                    .build());
+            scheduler.scheduleAtFixedRate(this::evaluate, WINDOW_MILLIS, WINDOW_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    public synchronized void removeBudget(Object owner) {
+        budgets.remove(owner);
+        updateMeasureCpuTime();
+        if (budgets.isEmpty()) {
+            if (scheduler != null) {
+                scheduler.shutdownNow();
+                scheduler = null;
+            }
+            if (step != Step.NORMAL) {
+                transition(Step.NORMAL, "no budget configured");
+            }
+        }
+    }
+
+    private void updateMeasureCpuTime() {
+        measureCpuTime = THREAD_MX_BEAN.isCurrentThreadCpuTimeSupported()
+                && budgets.values().stream().anyMatch(budget -> budget.maxCpuPercent > 0);
+    }
+
+    public Step getStep() {
+        return step;
+    }
+
+    public long getTransitions() {
+        return transitions.get();
+    }
+
+    /**
+     * Applies the current degradation step to the given event.
+     *
+     * @return the (possibly degraded) event or {@code null} if the event should be dropped
+     */
+    @Nullable
+    public LogEvent admit(LogEvent event) {
+        final Step currentStep = step;
+        if (currentStep == Step.NORMAL) {
+            return event;
+        }
+
+        final Level level = event.getLevel();
+        if (currentStep.compareTo(Step.RAISED_THRESHOLD) >= 0 && level.isLessSpecificThan(Level.INFO)) {
+            return null;
+        }
+        if (currentStep == Step.SAMPLING && level.isLessSpecificThan(Level.WARN)
+                && sampleCounter.getAndIncrement() % SAMPLING_RATE != 0) {
+            return null;
+        }
+
+        return degrade(event, currentStep.compareTo(Step.TRUNCATED_TRACES) >= 0);
+    }
+
+    public void recordAppendTime(long nanos) {
+        appendedEvents.increment();
+        appendNanos.add(nanos);
+    }
+
+    /**
+     * @return the CPU time of the current thread in nanoseconds, or a negative value if no CPU budget is configured
+     */
+    public long currentThreadCpuTime() {
+        return measureCpuTime ? THREAD_MX_BEAN.getCurrentThreadCpuTime() : -1L;
+    }
+
+    /**
+     * Records the CPU time spent in the appender, measured with {@link #currentThreadCpuTime()}.
+     */
+    public void recordAppendCpuTime(long cpuNanos) {
+        appendCpuNanos.add(cpuNanos);
+    }
+
+    @VisibleForTesting
+    synchronized void evaluate() {
+        final long events = appendedEvents.sumThenReset();
+        final long nanos = appendNanos.sumThenReset();
+        final long averageNanos = events == 0L ? 0L : nanos / events;
+        final long cpuNanos = appendCpuNanos.sumThenReset();
+        final long now = nanoClock.getAsLong();
+        final long windowNanos = Math.max(1L, now - windowStart);
+        windowStart = now;
+        final long cpuPercent = cpuNanos * 100L / (windowNanos * processors);
+
+        String exceeded = null;
+        boolean relaxed = true;
+        for (Budget budget : budgets.values()) {
+            if (budget.maxAppendNanos > 0L) {
+                if (averageNanos > budget.maxAppendNanos) {
+                    exceeded = "average append time " + averageNanos + "ns > " + budget.maxAppendNanos + "ns";
+                } else if (averageNanos > budget.maxAppendNanos / 2L) {
+                    relaxed = false;
+                }
+            }
+            if (budget.maxCpuPercent > 0) {
+                if (cpuPercent > budget.maxCpuPercent) {
+                    exceeded = "appender CPU time " + cpuPercent + "% > " + budget.maxCpuPercent + "%";
+                } else if (cpuPercent * 2L > budget.maxCpuPercent) {
+                    relaxed = false;
+                }
+            }
+            if (budget.maxQueuePercent > 0 && budget.queueCapacity > 0) {
+                final long queuePercent = budget.queueDepth.getAsInt() * 100L / budget.queueCapacity;
+                if (queuePercent > budget.maxQueuePercent) {
+                    exceeded = "queue " + queuePercent + "% full > " + budget.maxQueuePercent + "%";
+                } else if (queuePercent > budget.maxQueuePercent / 2) {
+                    relaxed = false;
+                }
+            }
+        }
+
+        final Step currentStep = step;
+        if (exceeded != null) {
+            calmWindows = 0;
+            if (currentStep != Step.SAMPLING) {
+                transition(Step.values()[currentStep.ordinal() + 1], exceeded);
+            }
+        } else if (relaxed && currentStep != Step.NORMAL) {
+            if (++calmWindows >= RECOVERY_WINDOWS) {
+                calmWindows = 0;
+                transition(Step.values()[currentStep.ordinal() - 1], "overhead within budget");
+            }
+        } else {
+            calmWindows = 0;
+        }
+    }
+
+    private void transition(Step newStep, String reason) {
+        final Step oldStep = step;
+        step = newStep;
+        transitions.incrementAndGet();
+        // Runs on the controller thread, so this event passes through the appender like any other.
+        LOG.warn("Internal logs overhead control changed from {} to {} ({})", oldStep, newStep, reason);
+    }
+
+    private static LogEvent degrade(LogEvent event, boolean truncateStackTrace) {
+        final StringMap contextData = ContextDataFactory.createContextData();
+        contextData.putAll(event.getContextData());
+
+        final Throwable thrown = event.getThrown();
+        final Log4jLogEvent.Builder builder = Log4jLogEvent.newBuilder();
+        if (truncateStackTrace && thrown != null) {
+            builder.setThrown(null).setThrownProxy(truncate(thrown));
+        } else {
+            builder.setThrown(thrown);
+        }
+        return builder
+                .setLoggerName(event.getLoggerName())
+                .setLoggerFqcn(event.getLoggerFqcn())
+                .setMarker(event.getMarker())
+                .setLevel(event.getLevel())
+                .setMessage(event.getMessage())
+                .setContextData(contextData)
+                .setContextStack(event.getContextStack())
+                .setThreadId(event.getThreadId())
+                .setThreadName(event.getThreadName())
+                .setThreadPriority(event.getThreadPriority())
+                .setTimeMillis(event.getTimeMillis())
+                .setNanoTime(event.getNanoTime())
+                .setEndOfBatch(event.isEndOfBatch())
+                .setIncludeLocation(false)
+                .setSource(null)
+                .build();
+    }
+
+    /**
+     * Creates the {@link ThrowableProxy} of a stand-in for the given exception with a truncated stack trace and without
+     * causes and suppressed exceptions. Only the frames of the stand-in are resolved, which is the expensive part of
+     * creating a {@link ThrowableProxy}. The proxy reports the class of the original exception.
+     */
+    private static ThrowableProxy truncate(Throwable thrown) {
+        final String className = thrown.getClass().getName();
+        final String message = THROWABLE_PROXY_NAME == null ? className + ": " + thrown.getMessage() : thrown.getMessage();
+        final Throwable truncated = new TruncatedThrowable(message);
+        final StackTraceElement[] stackTrace = thrown.getStackTrace();
+        truncated.setStackTrace(Arrays.copyOf(stackTrace, Math.min(stackTrace.length, TRUNCATED_STACK_TRACE_DEPTH)));
+
+        final ThrowableProxy proxy = new ThrowableProxy(truncated);
+        if (THROWABLE_PROXY_NAME != null) {
+            try {
+                THROWABLE_PROXY_NAME.set(proxy, className);
+            } catch (IllegalAccessException e) {
+                return new ThrowableProxy(new TruncatedThrowable(className + ": " + thrown.getMessage()));
+            }
+        }
+        return proxy;
+    }
+
+    @Nullable
+    private static Field throwableProxyNameField() {
+        try {
+            final Field field = ThrowableProxy.class.getDeclaredField("name");
+            field.setAccessible(true);
+            return field.getType() == String.class ? field : null;
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            LOG.debug("Truncated stack traces will report the class of the stand-in exception", e);
+            return null;
+        }
+    }
+
+    /**
+     * Stand-in for an exception whose stack trace has been truncated, without causes and suppressed exceptions.
+     */
+    private static final class TruncatedThrowable extends Throwable {
+        private static final long serialVersionUID = 1L;
+
+        private TruncatedThrowable(String message) {
+            super(message);
+        }
+
+        @Override
+        public synchronized Throwable fillInStackTrace() {
+            return this;
+        }
+    }
+
+    private static final class Budget {
+        private final long maxAppendNanos;
+        private final int maxCpuPercent;
+        private final int maxQueuePercent;
+        private final IntSupplier queueDepth;
+        private final int queueCapacity;
+
+        private Budget(long maxAppendNanos, int maxCpuPercent, int maxQueuePercent, IntSupplier queueDepth, int queueCapacity) {
+            this.maxAppendNanos = maxAppendNanos;
+            this.maxCpuPercent = maxCpuPercent;
+            this.maxQueuePercent = maxQueuePercent;
+            this.queueDepth = queueDepth;
+            this.queueCapacity = queueCapacity;
+        }
+    }
+}
@@ -0,0 +1,198 @@
+/**
+ * Graylog Internal Logs Plugin - Internal Logs plugin for Graylog
+ * Copyright © 2016 Graylog, Inc. (hello@graylog.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.internallogs.log4j;
+
+import com.google.common.annotations.VisibleForTesting;
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.LoggerContext;
+import org.apache.logging.log4j.core.config.Configuration;
+import org.apache.logging.log4j.core.config.LoggerConfig;
+import org.graylog.plugins.internallogs.jfr.FlightRecorderLogEvents;
+import org.graylog.plugins.internallogs.stats.HeavyHittersSketch;
+import org.graylog.plugins.internallogs.stats.LogThroughputAggregator;
+import org.graylog.plugins.internallogs.tail.LiveTailBuffer;
+
+import javax.annotation.Nullable;
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.beans.PropertyChangeEvent;
+import java.beans.PropertyChangeListener;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+import java.util.function.Consumer;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Reference-counted holder of the single {@link DirectConsumingAppender} shared by all internal logs inputs.
+ * <p>
+ * The appender is attached to the Log4j configuration when the first consumer registers and detached again when
+ * the last consumer has been removed, so every log event is serialized once regardless of the number of inputs.
+ * <p>
+ * The registry listens for configuration changes of the {@link LoggerContext} and attaches the appender to logger
+ * configs which have been added since, or to the new configuration after Log4j has been reconfigured. Logger
+ * configs which already have been handled are skipped and the loggers are only updated if anything has changed.
+ */
+@Singleton
+public class SharedAppenderRegistry {
+    public static final String APPENDER_NAME = "graylog-plugin-internal-logs";
+
+    private final LogThroughputAggregator throughputAggregator;
+    private final HeavyHittersSketch heavyHitters;
+    private final LiveTailBuffer liveTailBuffer;
+    private final OverheadController overheadController;
+    private final ContextSnapshots contextSnapshots;
+    private final FlightRecorderLogEvents flightRecorderLogEvents;
+    private final PropertyChangeListener configurationListener = this::onConfigurationChange;
+    private final Set<LoggerConfig> attachedLoggerConfigs = Collections.newSetFromMap(new IdentityHashMap<>());
+    private DirectConsumingAppender appender;
+    private LoggerContext context;
+    private Configuration attachedConfiguration;
+    private boolean attaching = false;
+
+    @Inject
+    public SharedAppenderRegistry(LogThroughputAggregator throughputAggregator,
+                                  HeavyHittersSketch heavyHitters,
+                                  LiveTailBuffer liveTailBuffer,
+                                  OverheadController overheadController,
+                                  ContextSnapshots contextSnapshots,
+                                  FlightRecorderLogEvents flightRecorderLogEvents) {
+        this.throughputAggregator = requireNonNull(throughputAggregator);
+        this.heavyHitters = requireNonNull(heavyHitters);
+        this.liveTailBuffer = requireNonNull(liveTailBuffer);
+        this.overheadController = requireNonNull(overheadController);
+        this.contextSnapshots = requireNonNull(contextSnapshots);
+        this.flightRecorderLogEvents = requireNonNull(flightRecorderLogEvents);
+    }
+
+    public ContextSnapshots getContextSnapshots() {
+        return contextSnapshots;
+    }
+
+    public DirectConsumingAppender register(SerializedLogEventConsumer logEventConsumer, Level threshold) {
+        return register(logEventConsumer, threshold, false);
+    }
+
+    public DirectConsumingAppender register(SerializedLogEventConsumer logEventConsumer, Level threshold, boolean shareContext) {
+        return register(logEventConsumer, threshold, shareContext, false);
+    }
+
+    public synchronized DirectConsumingAppender register(SerializedLogEventConsumer logEventConsumer, Level threshold,
+                                                         boolean shareContext, boolean includeParameters) {
+        if (appender == null) {
+            final Consumer<LogEvent> observers = ((Consumer<LogEvent>) throughputAggregator::record)
+                    .andThen(heavyHitters::offer)
+                    .andThen(liveTailBuffer::append)
+                    .andThen(flightRecorderLogEvents::record);
+            appender = new DirectConsumingAppender(APPENDER_NAME, observers, overheadController, contextSnapshots);
+            appender.addConsumer(logEventConsumer, threshold, shareContext, includeParameters);
+            addAppender();
+        } else {
+            appender.addConsumer(logEventConsumer, threshold, shareContext, includeParameters);
+        }
+        return appender;
+    }
+
+    public synchronized void unregister(SerializedLogEventConsumer logEventConsumer) {
+        if (appender != null && appender.removeConsumer(logEventConsumer) == 0) {
+            removeAppender(appender.getName());
+            appender.stop();
+            appender = null;
+        }
+    }
+
+    @VisibleForTesting
+    @Nullable
+    synchronized DirectConsumingAppender getAppender() {
+        return appender;
+    }
+
+    private void addAppender() {
+        context = LoggerContext.getContext(false);
+        attach(context.getConfiguration());
+        context.addPropertyChangeListener(configurationListener);
+    }
+
+    private void removeAppender(String name) {
+        context.removePropertyChangeListener(configurationListener);
+        final Configuration config = context.getConfiguration();
+
+        for (final LoggerConfig loggerConfig : config.getLoggers().values()) {
+            loggerConfig.removeAppender(name);
+        }
+        config.getRootLogger().removeAppender(name);
+        attachedConfiguration = null;
+        attachedLoggerConfigs.clear();
+        context.updateLoggers();
+        context = null;
+    }
+
+    /**
+     * Called by Log4j after reconfigurations and each time the loggers have been updated, e.g. after log levels
+     * have been changed.
+     */
+    private synchronized void onConfigurationChange(PropertyChangeEvent event) {
+        if (appender != null && !attaching && LoggerContext.PROPERTY_CONFIG.equals(event.getPropertyName())
+                && event.getNewValue() instanceof Configuration) {
+            attach((Configuration) event.getNewValue());
+        }
+    }
+
+    /**
+     * Attaches the appender to all logger configs it hasn't been attached to yet and updates the loggers only if
+     * anything has changed.
+     */
+    private void attach(Configuration config) {
+        // The appender is stopped together with the previous configuration after Log4j has been reconfigured
+        if (!appender.isStarted()) {
+            appender.start();
+        }
+
+        boolean changed = false;
+        if (config != attachedConfiguration) {
+            config.addAppender(appender);
+            attachedConfiguration = config;
+            attachedLoggerConfigs.clear();
+        }
+
+        for (final LoggerConfig loggerConfig : config.getLoggers().values()) {
+            changed |= attach(loggerConfig);
+        }
+        changed |= attach(config.getRootLogger());
+
+        if (changed) {
+            // Updating the loggers calls the listener again, which has nothing left to do
+            attaching = true;
+            try {
+                context.updateLoggers();
+            } finally {
+                attaching = false;
+            }
+        }
+    }
+
+    private boolean attach(LoggerConfig loggerConfig) {
+        if (!attachedLoggerConfigs.add(loggerConfig) || loggerConfig.getAppenders().containsKey(appender.getName())) {
+            return false;
+        }
+        loggerConfig.addAppender(appender, null, null);
+        return true;
+    }
+}
@@ -0,0 +1,72 @@
+/**
+ * Graylog Internal Logs Plugin - Internal Logs plugin for Graylog
+ * Copyright © 2016 Graylog, Inc. (hello@graylog.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.internallogs.rest;
+
+import com.codahale.metrics.annotation.Timed;
+import io.swagger.annotations.Api;
+import io.swagger.annotations.ApiOperation;
+import io.swagger.annotations.ApiParam;
+import org.apache.shiro.authz.annotation.RequiresAuthentication;
+import org.graylog.plugins.internallogs.stats.ClusterThroughputSummary;
+import org.graylog.plugins.internallogs.stats.ThroughputSummary;
+import org.graylog2.cluster.NodeService;
+import org.graylog2.plugin.rest.PluginRestResource;
+import org.graylog2.rest.RemoteInterfaceProvider;
+import org.graylog2.shared.rest.resources.ProxiedResource;
+import org.graylog2.shared.security.RestPermissions;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.ws.rs.DefaultValue;
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.MediaType;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+
+@RequiresAuthentication
+@Api(value = "Internal Logs/Cluster Throughput", description = "Internal log throughput of all nodes in the cluster")
+@Path("/cluster/throughput")
+@Produces(MediaType.APPLICATION_JSON)
+public class ClusterInternalLogsThroughputResource extends ProxiedResource implements PluginRestResource {
+    @Inject
+    public ClusterInternalLogsThroughputResource(@Context HttpHeaders httpHeaders,
+                                                 NodeService nodeService,
+                                                 RemoteInterfaceProvider remoteInterfaceProvider,
+                                                 @Named("proxiedRequestsExecutorService") ExecutorService executorService) {
+        super(httpHeaders, nodeService, remoteInterfaceProvider, executorService);
+    }
+
+    @GET
+    @Timed
+    @ApiOperation(value = "Internal log event counts per level and logger over the rolling window of all nodes",
+            notes = "Nodes which couldn't be queried are listed in unavailable_nodes and not included in the counts.")
+    public ClusterThroughputSummary throughput(@ApiParam(name = "limit", value = "Maximum number of loggers to return")
+                                               @QueryParam("limit") @DefaultValue("20") int limit) {
+        checkPermission(RestPermissions.LOGGERS_READ);
+        final Map<String, Optional<ThroughputSummary>> nodeSummaries = getForAllNodes(
+                remoteResource -> remoteResource.throughput(limit),
+                createRemoteInterfaceProvider(RemoteInternalLogsThroughputResource.class));
+        return ClusterThroughputSummary.merge(nodeSummaries, limit);
+    }
+}
@@ -0,0 +1,79 @@
+/**
+ * Graylog Internal Logs Plugin - Internal Logs plugin for Graylog
+ * Copyright © 2016 Graylog, Inc. (hello@graylog.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.internallogs.rest;
+
+import com.codahale.metrics.annotation.Timed;
+import io.swagger.annotations.Api;
+import io.swagger.annotations.ApiOperation;
+import io.swagger.annotations.ApiParam;
+import org.apache.logging.log4j.Level;
+import org.apache.shiro.authz.annotation.RequiresAuthentication;
+import org.graylog.plugins.internallogs.tail.LiveTailBuffer;
+import org.graylog.plugins.internallogs.tail.TailResult;
+import org.graylog2.plugin.rest.PluginRestResource;
+import org.graylog2.shared.rest.resources.RestResource;
+import org.graylog2.shared.security.RestPermissions;
+
+import javax.inject.Inject;
+import javax.ws.rs.BadRequestException;
+import javax.ws.rs.DefaultValue;
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.core.MediaType;
+import java.util.Locale;
+
+import static java.util.Objects.requireNonNull;
+
+@RequiresAuthentication
+@Api(value = "Internal Logs/Tail", description = "Live tail of the internal logs of this node")
+@Path("/tail")
+@Produces(MediaType.APPLICATION_JSON)
+public class InternalLogsTailResource extends RestResource implements PluginRestResource {
+    private static final int MAX_LIMIT = 1000;
+
+    private final LiveTailBuffer liveTailBuffer;
+
+    @Inject
+    public InternalLogsTailResource(LiveTailBuffer liveTailBuffer) {
+        this.liveTailBuffer = requireNonNull(liveTailBuffer);
+    }
+
+    @GET
+    @Timed
+    @ApiOperation(value = "Internal log events written since the given cursor",
+            notes = "Pass the returned next_cursor to the following request to only receive new events.")
+    public TailResult tail(@ApiParam(name = "cursor", value = "Cursor returned by the previous request, or -1 for the latest events")
+                           @QueryParam("cursor") @DefaultValue("-1") long cursor,
+                           @ApiParam(name = "limit", value = "Maximum number of events to return")
+                           @QueryParam("limit") @DefaultValue("100") int limit,
+                           @ApiParam(name = "level", value = "Minimum level of the returned events")
+                           @QueryParam("level") String level,
+                           @ApiParam(name = "logger", value = "Logger name prefix of the returned events")
+                           @QueryParam("logger") String logger) {
+        // Tail entries contain full message bodies, like the log messages of LoggersResource
+        checkPermission(RestPermissions.LOGGERSMESSAGES_READ);
+
+        final Level minLevel = level == null ? null : Level.getLevel(level.toUpperCase(Locale.ENGLISH));
+        if (level != null && minLevel == null) {
+            throw new BadRequestException("Unknown level " + level);
+        }
+        return liveTailBuffer.read(cursor, Math.min(Math.max(limit, 0), MAX_LIMIT), minLevel, logger);
+    }
+}
@@ -0,0 +1,75 @@
+/**
+ * Graylog Internal Logs Plugin - Internal Logs plugin for Graylog
+ * Copyright © 2016 Graylog, Inc. (hello@graylog.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.internallogs.rest;
+
+import com.codahale.metrics.annotation.Timed;
+import io.swagger.annotations.Api;
+import io.swagger.annotations.ApiOperation;
+import io.swagger.annotations.ApiParam;
+import org.apache.shiro.authz.annotation.RequiresAuthentication;
+import org.graylog.plugins.internallogs.stats.HeavyHittersSketch;
+import org.graylog.plugins.internallogs.stats.LogThroughputAggregator;
+import org.graylog.plugins.internallogs.stats.ThroughputSummary;
+import org.graylog2.plugin.rest.PluginRestResource;
+import org.graylog2.shared.rest.resources.RestResource;
+import org.graylog2.shared.security.RestPermissions;
+
+import javax.inject.Inject;
+import javax.ws.rs.DefaultValue;
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.core.MediaType;
+import java.util.List;
+
+import static java.util.Objects.requireNonNull;
+
+@RequiresAuthentication
+@Api(value = "Internal Logs/Throughput", description = "Internal log throughput of this node")
+@Path("/throughput")
+@Produces(MediaType.APPLICATION_JSON)
+public class InternalLogsThroughputResource extends RestResource implements PluginRestResource {
+    private final LogThroughputAggregator aggregator;
+    private final HeavyHittersSketch heavyHitters;
+
+    @Inject
+    public InternalLogsThroughputResource(LogThroughputAggregator aggregator, HeavyHittersSketch heavyHitters) {
+        this.aggregator = requireNonNull(aggregator);
+        this.heavyHitters = requireNonNull(heavyHitters);
+    }
+
+    @GET
+    @Timed
+    @ApiOperation(value = "Internal log event counts per level and logger over the rolling window")
+    public ThroughputSummary throughput(@ApiParam(name = "limit", value = "Maximum number of loggers to return")
+                                        @QueryParam("limit") @DefaultValue("20") int limit) {
+        checkPermission(RestPermissions.LOGGERS_READ);
+        return aggregator.summarize(limit);
+    }
+
+    @GET
+    @Timed
+    @Path("/heavy-hitters")
+    @ApiOperation(value = "Approximate top loggers by internal log volume since the node has been started")
+    public List<HeavyHittersSketch.HeavyHitter> heavyHitters(@ApiParam(name = "limit", value = "Maximum number of loggers to return")
+                                                           @QueryParam("limit") @DefaultValue("20") int limit) {
+        checkPermission(RestPermissions.LOGGERS_READ);
+        return heavyHitters.top(limit);
+    }
+}
@@ -0,0 +1,139 @@
+/**
+ * Graylog Internal Logs Plugin - Internal Logs plugin for Graylog
+ * Copyright © 2016 Graylog, Inc. (hello@graylog.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.internallogs.stats;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.TreeMap;
+
+/**
+ * Internal log throughput of all nodes in the cluster, merged from the {@link ThroughputSummary} of each node.
+ * <p>
+ * Each node only reports its top loggers, so the merged per-logger counts are a lower bound for loggers which
+ * didn't make it into the top loggers of every node. The per-level counts and the total are exact.
+ */
+public class ClusterThroughputSummary {
+    private final long windowSeconds;
+    private final long total;
+    private final Map<String, Long> levels;
+    private final List<ThroughputSummary.LoggerCount> loggers;
+    private final Map<String, ThroughputSummary> nodes;
+    private final List<String> unavailableNodes;
+
+    public ClusterThroughputSummary(long windowSeconds,
+                                    long total,
+                                    Map<String, Long> levels,
+                                    List<ThroughputSummary.LoggerCount> loggers,
+                                    Map<String, ThroughputSummary> nodes,
+                                    List<String> unavailableNodes) {
+        this.windowSeconds = windowSeconds;
+        this.total = total;
+        this.levels = ImmutableMap.copyOf(levels);
+        this.loggers = ImmutableList.copyOf(loggers);
+        this.nodes = ImmutableMap.copyOf(nodes);
+        this.unavailableNodes = ImmutableList.copyOf(unavailableNodes);
+    }
+
+    /**
+     * @param nodeSummaries the summary of each node by node ID, or an empty optional if the node couldn't be queried
+     * @param topLoggers    maximum number of merged loggers to include
+     */
+    public static ClusterThroughputSummary merge(Map<String, Optional<ThroughputSummary>> nodeSummaries, int topLoggers) {
+        final Map<String, ThroughputSummary> nodes = new TreeMap<>();
+        final List<String> unavailableNodes = new ArrayList<>();
+        nodeSummaries.forEach((nodeId, summary) -> {
+            if (summary.isPresent()) {
+                nodes.put(nodeId, summary.get());
+            } else {
+                unavailableNodes.add(nodeId);
+            }
+        });
+        unavailableNodes.sort(Comparator.naturalOrder());
+
+        long windowSeconds = 0L;
+        long total = 0L;
+        final Map<String, Long> levels = new TreeMap<>();
+        final Map<String, Map<String, Long>> loggerLevels = new HashMap<>();
+        for (ThroughputSummary summary : nodes.values()) {
+            windowSeconds = Math.max(windowSeconds, summary.getWindowSeconds());
+            total += summary.getTotal();
+            addTo(levels, summary.getLevels());
+            for (ThroughputSummary.LoggerCount logger : summary.getLoggers()) {
+                addTo(loggerLevels.computeIfAbsent(logger.getLoggerName(), k -> new TreeMap<>()), logger.getLevels());
+            }
+        }
+
+        final List<ThroughputSummary.LoggerCount> loggers = new ArrayList<>(loggerLevels.size());
+        loggerLevels.forEach((logger, counts) -> loggers.add(new ThroughputSummary.LoggerCount(logger, sum(counts), counts)));
+        loggers.sort(Comparator.comparingLong(ThroughputSummary.LoggerCount::getTotal).reversed()
+                .thenComparing(ThroughputSummary.LoggerCount::getLoggerName));
+
+        return new ClusterThroughputSummary(windowSeconds, total, levels,
+                loggers.subList(0, Math.min(Math.max(topLoggers, 0), loggers.size())), nodes, unavailableNodes);
+    }
+
+    private static void addTo(Map<String, Long> totals, Map<String, Long> counts) {
+        counts.forEach((level, count) -> totals.merge(level, count, Long::sum));
+    }
+
+    private static long sum(Map<String, Long> counts) {
+        long sum = 0L;
+        for (long count : counts.values()) {
+            sum += count;
+        }
+        return sum;
+    }
+
+    @JsonProperty("window_seconds")
+    public long getWindowSeconds() {
+        return windowSeconds;
+    }
+
+    @JsonProperty("total")
+    public long getTotal() {
+        return total;
+    }
+
+    @JsonProperty("levels")
+    public Map<String, Long> getLevels() {
+        return levels;
+    }
+
+    @JsonProperty("loggers")
+    public List<ThroughputSummary.LoggerCount> getLoggers() {
+        return loggers;
+    }
+
+    @JsonProperty("nodes")
+    public Map<String, ThroughputSummary> getNodes() {
+        return nodes;
+    }
+
+    @JsonProperty("unavailable_nodes")
+    public List<String> getUnavailableNodes() {
+        return unavailableNodes;
+    }
+}
@@ -0,0 +1,220 @@
+/**
+ * Graylog Internal Logs Plugin - Internal Logs plugin for Graylog
+ * Copyright © 2016 Graylog, Inc. (hello@graylog.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.internallogs.stats;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.google.common.annotations.VisibleForTesting;
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.core.LogEvent;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Space-Saving sketch of the loggers (and levels) producing the most internal log events.
+ * <p>
+ * The sketch tracks at most {@code capacity} keys, so its memory use is constant no matter how many distinct
+ * loggers exist. Counts of tracked keys are overestimated by at most their reported error.
+ *
+ * @see <a href="https://doi.org/10.1007/978-3-540-30570-5_27">Metwally et al., Efficient Computation of Frequent and Top-k Elements in Data Streams</a>
+ */
+@Singleton
+public class HeavyHittersSketch {
+    private static final int DEFAULT_CAPACITY = 128;
+
+    private final Map<Key, Counter> counters;
+    private final Counter[] heap;
+    private int size = 0;
+    private long total = 0L;
+
+    @Inject
+    public HeavyHittersSketch() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    @VisibleForTesting
+    HeavyHittersSketch(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+        this.counters = new HashMap<>(capacity * 2);
+        this.heap = new Counter[capacity];
+    }
+
+    public void offer(LogEvent event) {
+        offer(event.getLoggerName(), event.getLevel());
+    }
+
+    public synchronized void offer(String loggerName, Level level) {
+        total++;
+        final Key key = new Key(loggerName == null ? "" : loggerName, level);
+        final Counter counter = counters.get(key);
+        if (counter != null) {
+            counter.count++;
+            siftDown(counter.index);
+        } else if (size < heap.length) {
+            final Counter newCounter = new Counter(key, size);
+            heap[size++] = newCounter;
+            counters.put(key, newCounter);
+            siftUp(newCounter.index);
+        } else {
+            // Replace the key with the smallest count; its count becomes the error bound of the new key.
+            final Counter min = heap[0];
+            counters.remove(min.key);
+            min.key = key;
+            min.error = min.count;
+            min.count++;
+            counters.put(key, min);
+            siftDown(0);
+        }
+    }
+
+    public synchronized List<HeavyHitter> top(int limit) {
+        final List<Counter> sorted = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            sorted.add(heap[i]);
+        }
+        sorted.sort(Comparator.comparingLong((Counter c) -> c.count).reversed());
+
+        final int resultSize = Math.min(Math.max(limit, 0), sorted.size());
+        final List<HeavyHitter> result = new ArrayList<>(resultSize);
+        for (Counter counter : sorted.subList(0, resultSize)) {
+            result.add(new HeavyHitter(counter.key.loggerName, counter.key.level.name(), counter.count, counter.error));
+        }
+        return result;
+    }
+
+    public synchronized long total() {
+        return total;
+    }
+
+    private void siftUp(int index) {
+        final Counter counter = heap[index];
+        while (index > 0) {
+            final int parent = (index - 1) >>> 1;
+            if (heap[parent].count <= counter.count) {
+                break;
+            }
+            place(heap[parent], index);
+            index = parent;
+        }
+        place(counter, index);
+    }
+
+    private void siftDown(int index) {
+        final Counter counter = heap[index];
+        final int half = size >>> 1;
+        while (index < half) {
+            int child = (index << 1) + 1;
+            final int right = child + 1;
+            if (right < size && heap[right].count < heap[child].count) {
+                child = right;
+            }
+            if (counter.count <= heap[child].count) {
+                break;
+            }
+            place(heap[child], index);
+            index = child;
+        }
+        place(counter, index);
+    }
+
+    private void place(Counter counter, int index) {
+        heap[index] = counter;
+        counter.index = index;
+    }
+
+    private static final class Key {
+        private final String loggerName;
+        private final Level level;
+
+        private Key(String loggerName, Level level) {
+            this.loggerName = loggerName;
+            this.level = level;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+            final Key that = (Key) o;
+            return level.equals(that.level) && loggerName.equals(that.loggerName);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(loggerName, level);
+        }
+    }
+
+    private static final class Counter {
+        private Key key;
+        private int index;
+        private long count = 1L;
+        private long error = 0L;
+
+        private Counter(Key key, int index) {
+            this.key = key;
+            this.index = index;
+        }
+    }
+
+    public static class HeavyHitter {
+        private final String loggerName;
+        private final String level;
+        private final long count;
+        private final long error;
+
+        public HeavyHitter(String loggerName, String level, long count, long error) {
+            this.loggerName = loggerName;
+            this.level = level;
+            this.count = count;
+            this.error = error;
+        }
+
+        @JsonProperty("logger_name")
+        public String getLoggerName() {
+            return loggerName;
+        }
+
+        @JsonProperty("level")
+        public String getLevel() {
+            return level;
+        }
+
+        @JsonProperty("count")
+        public long getCount() {
+            return count;
+        }
+
+        @JsonProperty("error")
+        public long getError() {
+            return error;
+        }
+    }
+}
@@ -0,0 +1,182 @@
+/**
+ * Graylog Internal Logs Plugin - Internal Logs plugin for Graylog
+ * Copyright © 2016 Graylog, Inc. (hello@graylog.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.internallogs.stats;
+
+import com.google.common.annotations.VisibleForTesting;
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.spi.StandardLevel;
+import org.graylog2.plugin.system.NodeId;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Keeps rolling per-level and per-logger counts of the internal log events seen on this node.
+ * <p>
+ * The window is split into a fixed number of slots which are recycled in place, so recording an event only
+ * increments a couple of striped {@link LongAdder} counters indexed by {@link StandardLevel#ordinal()}.
+ */
+@Singleton
+public class LogThroughputAggregator {
+    @VisibleForTesting
+    static final String OTHER_LOGGERS = "(other)";
+
+    private static final int DEFAULT_SLOTS = 60;
+    private static final long DEFAULT_SLOT_MILLIS = TimeUnit.SECONDS.toMillis(1L);
+    private static final int MAX_LOGGERS_PER_SLOT = 2048;
+    private static final StandardLevel[] LEVELS = StandardLevel.values();
+
+    private final String nodeId;
+    private final LongSupplier clock;
+    private final long slotMillis;
+    private final Slot[] slots;
+
+    @Inject
+    public LogThroughputAggregator(NodeId nodeId) {
+        this(nodeId.toString(), System::currentTimeMillis, DEFAULT_SLOTS, DEFAULT_SLOT_MILLIS);
+    }
+
+    @VisibleForTesting
+    LogThroughputAggregator(String nodeId, LongSupplier clock, int slotCount, long slotMillis) {
+        this.nodeId = requireNonNull(nodeId);
+        this.clock = requireNonNull(clock);
+        this.slotMillis = slotMillis;
+        this.slots = new Slot[slotCount];
+        for (int i = 0; i < slotCount; i++) {
+            slots[i] = new Slot();
+        }
+    }
+
+    public void record(LogEvent event) {
+        record(event.getLevel(), event.getLoggerName());
+    }
+
+    public void record(Level level, String loggerName) {
+        final long epoch = clock.getAsLong() / slotMillis;
+        final Slot slot = slots[(int) (epoch % slots.length)];
+        if (slot.epoch != epoch) {
+            slot.rotate(epoch);
+        }
+        final int levelIndex = level.getStandardLevel().ordinal();
+        slot.levels[levelIndex].increment();
+        slot.counterFor(loggerName == null ? "" : loggerName)[levelIndex].increment();
+    }
+
+    public ThroughputSummary summarize(int topLoggers) {
+        final long currentEpoch = clock.getAsLong() / slotMillis;
+        final long oldestEpoch = currentEpoch - slots.length + 1;
+
+        final long[] levelTotals = new long[LEVELS.length];
+        final Map<String, long[]> loggerTotals = new HashMap<>();
+        for (Slot slot : slots) {
+            final long epoch = slot.epoch;
+            if (epoch < oldestEpoch || epoch > currentEpoch) {
+                continue;
+            }
+            addTo(levelTotals, slot.levels);
+            slot.loggers.forEach((logger, counters) ->
+                    addTo(loggerTotals.computeIfAbsent(logger, k -> new long[LEVELS.length]), counters));
+        }
+
+        long total = 0L;
+        for (long count : levelTotals) {
+            total += count;
+        }
+
+        final List<ThroughputSummary.LoggerCount> loggers = new ArrayList<>(loggerTotals.size());
+        loggerTotals.forEach((logger, counts) -> loggers.add(new ThroughputSummary.LoggerCount(logger, sum(counts), toLevelMap(counts))));
+        loggers.sort(Comparator.comparingLong(ThroughputSummary.LoggerCount::getTotal).reversed());
+
+        final long windowSeconds = TimeUnit.MILLISECONDS.toSeconds(slotMillis * slots.length);
+        return new ThroughputSummary(nodeId, windowSeconds, total, toLevelMap(levelTotals),
+                loggers.subList(0, Math.min(Math.max(topLoggers, 0), loggers.size())));
+    }
+
+    private static void addTo(long[] totals, LongAdder[] counters) {
+        for (int i = 0; i < counters.length; i++) {
+            totals[i] += counters[i].sum();
+        }
+    }
+
+    private static long sum(long[] counts) {
+        long sum = 0L;
+        for (long count : counts) {
+            sum += count;
+        }
+        return sum;
+    }
+
+    private static Map<String, Long> toLevelMap(long[] counts) {
+        final Map<String, Long> result = new LinkedHashMap<>();
+        for (int i = 0; i < counts.length; i++) {
+            if (counts[i] > 0L) {
+                result.put(LEVELS[i].name(), counts[i]);
+            }
+        }
+        return result;
+    }
+
+    private static LongAdder[] newCounters() {
+        final LongAdder[] counters = new LongAdder[LEVELS.length];
+        for (int i = 0; i < counters.length; i++) {
+            counters[i] = new LongAdder();
+        }
+        return counters;
+    }
+
+    private static final class Slot {
+        private final LongAdder[] levels = newCounters();
+        private final ConcurrentMap<String, LongAdder[]> loggers = new ConcurrentHashMap<>();
+        private volatile long epoch = -1L;
+
+        private synchronized void rotate(long newEpoch) {
+            if (epoch == newEpoch) {
+                return;
+            }
+            // Increments racing with the reset may end up in the new epoch, which is acceptable for statistics.
+            for (LongAdder counter : levels) {
+                counter.reset();
+            }
+            loggers.clear();
+            epoch = newEpoch;
+        }
+
+        private LongAdder[] counterFor(String loggerName) {
+            final LongAdder[] counters = loggers.get(loggerName);
+            if (counters != null) {
+                return counters;
+            }
+            final String key = loggers.size() < MAX_LOGGERS_PER_SLOT ? loggerName : OTHER_LOGGERS;
+            return loggers.computeIfAbsent(key, k -> newCounters());
+        }
+    }
+}
@@ -0,0 +1,102 @@
+/**
+ * Graylog Internal Logs Plugin - Internal Logs plugin for Graylog
+ * Copyright © 2016 Graylog, Inc. (hello@graylog.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.internallogs.stats;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+
+import java.util.List;
+import java.util.Map;
+
+public class ThroughputSummary {
+    private final String nodeId;
+    private final long windowSeconds;
+    private final long total;
+    private final Map<String, Long> levels;
+    private final List<LoggerCount> loggers;
+
+    @JsonCreator
+    public ThroughputSummary(@JsonProperty("node_id") String nodeId,
+                             @JsonProperty("window_seconds") long windowSeconds,
+                             @JsonProperty("total") long total,
+                             @JsonProperty("levels") Map<String, Long> levels,
+                             @JsonProperty("loggers") List<LoggerCount> loggers) {
+        this.nodeId = nodeId;
+        this.windowSeconds = windowSeconds;
+        this.total = total;
+        this.levels = ImmutableMap.copyOf(levels);
+        this.loggers = ImmutableList.copyOf(loggers);
+    }
+
+    @JsonProperty("node_id")
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    @JsonProperty("window_seconds")
+    public long getWindowSeconds() {
+        return windowSeconds;
+    }
+
+    @JsonProperty("total")
+    public long getTotal() {
+        return total;
+    }
+
+    @JsonProperty("levels")
+    public Map<String, Long> getLevels() {
+        return levels;
+    }
+
+    @JsonProperty("loggers")
+    public List<LoggerCount> getLoggers() {
+        return loggers;
+    }
+
+    public static class LoggerCount {
+        private final String loggerName;
+        private final long total;
+        private final Map<String, Long> levels;
+
+        @JsonCreator
+        public LoggerCount(@JsonProperty("logger_name") String loggerName,
+                           @JsonProperty("total") long total,
+                           @JsonProperty("levels") Map<String, Long> levels) {
+            this.loggerName = loggerName;
+            this.total = total;
+            this.levels = ImmutableMap.copyOf(levels);
+        }
+
+        @JsonProperty("logger_name")
+        public String getLoggerName() {
+            return loggerName;
+        }
+
+        @JsonProperty("total")
+        public long getTotal() {
+            return total;
+        }
+
+        @JsonProperty("levels")
+        public Map<String, Long> getLevels() {
+            return levels;
+        }
+    }
+}
@@ -0,0 +1,116 @@
+/**
+ * Graylog Internal Logs Plugin - Internal Logs plugin for Graylog
+ * Copyright © 2016 Graylog, Inc. (hello@graylog.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.internallogs.tail;
+
+import com.google.common.annotations.VisibleForTesting;
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.core.LogEvent;
+
+import javax.annotation.Nullable;
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Lock-free ring of the most recent internal log events for live tailing.
+ * <p>
+ * Writers copy the event, then claim a sequence number and publish a compact {@link TailEntry} into the corresponding
+ * slot. Readers pass the cursor returned by their previous read and only visit the slots written since then.
+ */
+@Singleton
+public class LiveTailBuffer {
+    private static final int DEFAULT_CAPACITY = 4096;
+
+    private final AtomicLong sequence = new AtomicLong();
+    private final AtomicReferenceArray<TailEntry> slots;
+    private final int mask;
+
+    @Inject
+    public LiveTailBuffer() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    @VisibleForTesting
+    LiveTailBuffer(int capacity) {
+        if (capacity <= 0 || Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("capacity must be a positive power of two");
+        }
+        this.slots = new AtomicReferenceArray<>(capacity);
+        this.mask = capacity - 1;
+    }
+
+    public void append(LogEvent event) {
+        // Read everything from the event before claiming a sequence number, so a failing event can't leave a
+        // claimed slot unpublished and stall readers
+        final long timeMillis = event.getTimeMillis();
+        final Level level = event.getLevel();
+        final String loggerName = event.getLoggerName();
+        final String threadName = event.getThreadName();
+        final String message = event.getMessage().getFormattedMessage();
+        final Throwable thrown = event.getThrown();
+        final String exceptionClass = thrown == null ? null : thrown.getClass().getName();
+
+        final long seq = sequence.getAndIncrement();
+        slots.lazySet((int) (seq & mask), new TailEntry(seq, timeMillis, level, loggerName, threadName, message, exceptionClass));
+    }
+
+    /**
+     * Reads the entries written since {@code cursor}.
+     *
+     * @param cursor      the cursor returned by the previous read or a negative value to read the latest entries
+     * @param limit       maximum number of entries to return
+     * @param minLevel    only return entries at least as severe as this level, or all entries if {@code null}
+     * @param loggerPrefix only return entries whose logger name starts with this prefix, or all entries if {@code null}
+     */
+    public TailResult read(long cursor, int limit, @Nullable Level minLevel, @Nullable String loggerPrefix) {
+        final long head = sequence.get();
+        final long oldest = Math.max(0L, head - slots.length());
+        final long start = cursor < 0L ? Math.max(oldest, head - limit) : Math.max(cursor, oldest);
+        final long missed = cursor < 0L ? 0L : start - cursor;
+
+        final List<TailEntry> entries = new ArrayList<>(Math.min(Math.max(limit, 0), 256));
+        long skipped = Math.max(0L, missed);
+        long next = start;
+        while (next < head && entries.size() < limit) {
+            final TailEntry entry = slots.get((int) (next & mask));
+            if (entry == null || entry.getSequence() < next) {
+                // The writer which claimed this sequence number hasn't published its entry yet.
+                break;
+            }
+            if (entry.getSequence() > next) {
+                // Overwritten by a faster writer in the meantime.
+                skipped++;
+            } else if (matches(entry, minLevel, loggerPrefix)) {
+                entries.add(entry);
+            }
+            next++;
+        }
+
+        return new TailResult(entries, next, skipped);
+    }
+
+    private static boolean matches(TailEntry entry, @Nullable Level minLevel, @Nullable String loggerPrefix) {
+        if (minLevel != null && !entry.getLevelObject().isMoreSpecificThan(minLevel)) {
+            return false;
+        }
+        return loggerPrefix == null || (entry.getLoggerName() != null && entry.getLoggerName().startsWith(loggerPrefix));
+    }
+}
@@ -0,0 +1,91 @@
+/**
+ * Graylog Internal Logs Plugin - Internal Logs plugin for Graylog
+ * Copyright © 2016 Graylog, Inc. (hello@graylog.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.internallogs.tail;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import org.apache.logging.log4j.Level;
+
+import javax.annotation.Nullable;
+
+public class TailEntry {
+    private final long sequence;
+    private final long timestamp;
+    private final Level level;
+    private final String loggerName;
+    private final String threadName;
+    private final String message;
+    private final String exceptionClass;
+
+    public TailEntry(long sequence,
+                     long timestamp,
+                     Level level,
+                     String loggerName,
+                     String threadName,
+                     String message,
+                     @Nullable String exceptionClass) {
+        this.sequence = sequence;
+        this.timestamp = timestamp;
+        this.level = level;
+        this.loggerName = loggerName;
+        this.threadName = threadName;
+        this.message = message;
+        this.exceptionClass = exceptionClass;
+    }
+
+    @JsonProperty("sequence")
+    public long getSequence() {
+        return sequence;
+    }
+
+    @JsonProperty("timestamp")
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    @JsonProperty("level")
+    public String getLevel() {
+        return level.name();
+    }
+
+    @JsonIgnore
+    Level getLevelObject() {
+        return level;
+    }
+
+    @JsonProperty("logger_name")
+    public String getLoggerName() {
+        return loggerName;
+    }
+
+    @JsonProperty("thread_name")
+    public String getThreadName() {
+        return threadName;
+    }
+
+    @JsonProperty("message")
+    public String getMessage() {
+        return message;
+    }
+
+    @JsonProperty("exception_class")
+    @Nullable
+    public String getExceptionClass() {
+        return exceptionClass;
+    }
+}
@@ -0,0 +1,53 @@
+/**
+ * Graylog Internal Logs Plugin - Internal Logs plugin for Graylog
+ * Copyright © 2016 Graylog, Inc. (hello@graylog.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.internallogs.tail;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.google.common.collect.ImmutableList;
+
+import java.util.List;
+
+public class TailResult {
+    private final List<TailEntry> entries;
+    private final long nextCursor;
+    private final long skipped;
+
+    public TailResult(List<TailEntry> entries, long nextCursor, long skipped) {
+        this.entries = ImmutableList.copyOf(entries);
+        this.nextCursor = nextCursor;
+        this.skipped = skipped;
+    }
+
+    @JsonProperty("entries")
+    public List<TailEntry> getEntries() {
+        return entries;
+    }
+
+    @JsonProperty("next_cursor")
+    public long getNextCursor() {
+        return nextCursor;
+    }
+
+    /**
+     * Number of entries which have been overwritten before they could be read.
+     */
+    @JsonProperty("skipped")
+    public long getSkipped() {
+        return skipped;
+    }
+}
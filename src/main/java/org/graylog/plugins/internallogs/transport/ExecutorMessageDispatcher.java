@@ -0,0 +1,122 @@
+/**
+ * Graylog Internal Logs Plugin - Internal Logs plugin for Graylog
+ * Copyright © 2016 Graylog, Inc. (hello@graylog.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.internallogs.transport;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import org.apache.logging.log4j.Level;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Enqueues serialized log events for an {@link ExecutorService} which passes them to the sink.
+ * <p>
+ * The number of pending events is bounded; events which don't fit are dropped instead of blocking the logging thread.
+ * Once the executor has been shut down, further events are dropped as well.
+ */
+public class ExecutorMessageDispatcher implements MessageDispatcher {
+    static final String METRIC_QUEUE_SIZE = "dispatcher.queueSize";
+    static final String METRIC_LATENCY = "dispatcher.latency";
+    static final String METRIC_DROPPED = "dispatcher.dropped";
+    static final String METRIC_FAILED = "dispatcher.failed";
+
+    private final ExecutorService executor;
+    private final int capacity;
+    private final Consumer<byte[]> sink;
+    private final MetricRegistry metricRegistry;
+    private final AtomicInteger pending = new AtomicInteger();
+    private final Timer latency;
+    private final Meter dropped;
+    private final Meter failed;
+
+    public ExecutorMessageDispatcher(ExecutorService executor, int capacity, Consumer<byte[]> sink, MetricRegistry metricRegistry) {
+        this.executor = requireNonNull(executor);
+        this.capacity = capacity;
+        this.sink = requireNonNull(sink);
+        this.metricRegistry = requireNonNull(metricRegistry);
+
+        metricRegistry.remove(METRIC_QUEUE_SIZE);
+        metricRegistry.register(METRIC_QUEUE_SIZE, (Gauge<Integer>) pending::get);
+        this.latency = metricRegistry.timer(METRIC_LATENCY);
+        this.dropped = metricRegistry.meter(METRIC_DROPPED);
+        this.failed = metricRegistry.meter(METRIC_FAILED);
+    }
+
+    @Override
+    public void dispatch(Level level, byte[] payload) {
+        if (pending.incrementAndGet() > capacity) {
+            pending.decrementAndGet();
+            dropped.mark();
+            return;
+        }
+
+        final long enqueued = System.nanoTime();
+        try {
+            executor.execute(() -> {
+                try {
+                    sink.accept(payload);
+                } catch (Exception e) {
+                    // Logging the failure would feed another event into the same failing path
+                    failed.mark();
+                } finally {
+                    pending.decrementAndGet();
+                    latency.update(System.nanoTime() - enqueued, TimeUnit.NANOSECONDS);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            pending.decrementAndGet();
+            dropped.mark();
+        }
+    }
+
+    @Override
+    public int getQueueDepth() {
+        return pending.get();
+    }
+
+    @Override
+    public int getQueueCapacity() {
+        return capacity;
+    }
+
+    @Override
+    public int stop(long timeout, TimeUnit unit) {
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(timeout, unit)) {
+                executor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+        metricRegistry.remove(METRIC_QUEUE_SIZE);
+        metricRegistry.remove(METRIC_LATENCY);
+        metricRegistry.remove(METRIC_DROPPED);
+        metricRegistry.remove(METRIC_FAILED);
+        return pending.get();
+    }
+}
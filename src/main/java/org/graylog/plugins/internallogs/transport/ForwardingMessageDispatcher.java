@@ -0,0 +1,334 @@
+/**
+ * Graylog Internal Logs Plugin - Internal Logs plugin for Graylog
+ * Copyright © 2016 Graylog, Inc. (hello@graylog.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.internallogs.transport;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.net.HostAndPort;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.logging.log4j.Level;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Forwards log events to a remote endpoint via TCP instead of writing them into the local journal.
+ * <p>
+ * Events are buffered in a bounded queue and sent in batches over a fixed number of persistent connections, one
+ * per sender thread. The senders encode each serialized log event, e.g. as GELF message, and write it followed by a
+ * null byte, which is the framing expected by GELF TCP inputs. Events which can't be encoded are dropped. Writes
+ * which don't make progress within the write timeout, e.g. because the remote endpoint stopped reading, fail the
+ * connection. Failed batches are retried with exponential backoff; events which don't fit into the buffer in the
+ * meantime are dropped. When stopped, the senders keep going until the buffer is empty or the timeout has expired.
+ */
+public class ForwardingMessageDispatcher implements MessageDispatcher {
+    private static final Logger LOG = LoggerFactory.getLogger(ForwardingMessageDispatcher.class);
+
+    static final String METRIC_BUFFER_SIZE = "forward.bufferSize";
+    static final String METRIC_CONNECTIONS = "forward.connections";
+    static final String METRIC_SENT = "forward.sent";
+    static final String METRIC_DROPPED = "forward.dropped";
+    static final String METRIC_FAILURES = "forward.failures";
+
+    private static final int CONNECT_TIMEOUT_MILLIS = 5000;
+    private static final long DEFAULT_WRITE_TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(10L);
+    private static final long MIN_BACKOFF_MILLIS = 100L;
+    private static final long MAX_BACKOFF_MILLIS = TimeUnit.SECONDS.toMillis(30L);
+    private static final byte FRAME_DELIMITER = 0;
+
+    private final HostAndPort remote;
+    private final int batchSize;
+    private final int bufferSize;
+    private final Function<byte[], byte[]> encoder;
+    private final long writeTimeoutNanos;
+    private final BlockingQueue<byte[]> buffer;
+    private final MetricRegistry metricRegistry;
+    private final ExecutorService senders;
+    private final AtomicInteger connections = new AtomicInteger();
+    private final AtomicInteger unsent = new AtomicInteger();
+    private final Meter sent;
+    private final Meter dropped;
+    private final Meter failures;
+    private volatile boolean accepting = true;
+    private volatile boolean running = true;
+
+    /**
+     * @param encoder converts a serialized log event into the message sent to the remote endpoint, or returns
+     *                {@code null} if it can't be encoded
+     */
+    public ForwardingMessageDispatcher(HostAndPort remote,
+                                       int connectionCount,
+                                       int batchSize,
+                                       int bufferSize,
+                                       Function<byte[], byte[]> encoder,
+                                       MetricRegistry metricRegistry) {
+        this(remote, connectionCount, batchSize, bufferSize, encoder, DEFAULT_WRITE_TIMEOUT_MILLIS, metricRegistry);
+    }
+
+    @VisibleForTesting
+    ForwardingMessageDispatcher(HostAndPort remote,
+                                int connectionCount,
+                                int batchSize,
+                                int bufferSize,
+                                Function<byte[], byte[]> encoder,
+                                long writeTimeoutMillis,
+                                MetricRegistry metricRegistry) {
+        this.remote = requireNonNull(remote);
+        this.batchSize = batchSize;
+        this.bufferSize = bufferSize;
+        this.encoder = requireNonNull(encoder);
+        this.writeTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(writeTimeoutMillis);
+        this.buffer = new ArrayBlockingQueue<>(bufferSize);
+        this.metricRegistry = requireNonNull(metricRegistry);
+        this.sent = metricRegistry.meter(METRIC_SENT);
+        this.dropped = metricRegistry.meter(METRIC_DROPPED);
+        this.failures = metricRegistry.meter(METRIC_FAILURES);
+
+        metricRegistry.remove(METRIC_BUFFER_SIZE);
+        metricRegistry.register(METRIC_BUFFER_SIZE, (Gauge<Integer>) buffer::size);
+        metricRegistry.remove(METRIC_CONNECTIONS);
+        metricRegistry.register(METRIC_CONNECTIONS, (Gauge<Integer>) connections::get);
+
+        this.senders = Executors.newFixedThreadPool(connectionCount, new ThreadFactoryBuilder()
+                .setNameFormat("internal-logs-forwarder-%d")
+                .setDaemon(true)
+                .build());
+        for (int i = 0; i < connectionCount; i++) {
+            senders.execute(new Sender());
+        }
+    }
+
+    @Override
+    public void dispatch(Level level, byte[] payload) {
+        if (accepting) {
+            unsent.incrementAndGet();
+            if (buffer.offer(payload)) {
+                return;
+            }
+            unsent.decrementAndGet();
+        }
+        dropped.mark();
+    }
+
+    @Override
+    public int getQueueDepth() {
+        return unsent.get();
+    }
+
+    @Override
+    public int getQueueCapacity() {
+        return bufferSize;
+    }
+
+    @Override
+    public int stop(long timeout, TimeUnit unit) {
+        // The senders exit once the buffer is empty
+        accepting = false;
+        senders.shutdown();
+        try {
+            senders.awaitTermination(timeout, unit);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        // Pending writes wait for the selector, which is woken up by the interrupt
+        running = false;
+        senders.shutdownNow();
+        metricRegistry.remove(METRIC_BUFFER_SIZE);
+        metricRegistry.remove(METRIC_CONNECTIONS);
+        return unsent.get();
+    }
+
+    private class Sender implements Runnable {
+        private final List<byte[]> batch = new ArrayList<>(batchSize);
+        private SocketChannel channel;
+        private Selector selector;
+        private int encodedMessages;
+        private boolean failing = false;
+
+        @Override
+        public void run() {
+            try {
+                while (running && !Thread.currentThread().isInterrupted()) {
+                    final byte[] first = buffer.poll(100L, TimeUnit.MILLISECONDS);
+                    if (first == null) {
+                        if (!accepting) {
+                            break;
+                        }
+                        continue;
+                    }
+                    batch.add(first);
+                    buffer.drainTo(batch, batchSize - 1);
+                    final ByteBuffer frames = encode();
+                    if (frames != null) {
+                        sendWithRetry(frames);
+                    }
+                    batch.clear();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                disconnect();
+            }
+        }
+
+        /**
+         * Encodes the current batch, dropping events which can't be encoded.
+         *
+         * @return the frames of the encoded events or {@code null} if none of them could be encoded
+         */
+        @Nullable
+        private ByteBuffer encode() {
+            final List<byte[]> messages = new ArrayList<>(batch.size());
+            int length = 0;
+            for (byte[] payload : batch) {
+                byte[] message;
+                try {
+                    message = encoder.apply(payload);
+                } catch (RuntimeException e) {
+                    LOG.debug("Couldn't encode internal log message for forwarding", e);
+                    message = null;
+                }
+                if (message == null) {
+                    dropped.mark();
+                    unsent.decrementAndGet();
+                } else {
+                    messages.add(message);
+                    length += message.length + 1;
+                }
+            }
+            encodedMessages = messages.size();
+            if (messages.isEmpty()) {
+                return null;
+            }
+
+            final ByteBuffer frames = ByteBuffer.allocate(length);
+            for (byte[] message : messages) {
+                frames.put(message).put(FRAME_DELIMITER);
+            }
+            frames.flip();
+            return frames;
+        }
+
+        private void sendWithRetry(ByteBuffer frames) throws InterruptedException {
+            long backoff = MIN_BACKOFF_MILLIS;
+            while (running) {
+                try {
+                    send(frames.duplicate());
+                    if (failing) {
+                        failing = false;
+                        LOG.info("Forwarding internal log messages to {} again", remote);
+                    }
+                    return;
+                } catch (InterruptedIOException | ClosedByInterruptException e) {
+                    throw new InterruptedException(e.getMessage());
+                } catch (IOException e) {
+                    failures.mark();
+                    disconnect();
+                    if (!failing) {
+                        failing = true;
+                        LOG.warn("Couldn't forward internal log messages to {}, retrying: {}", remote, e.getMessage());
+                    }
+                    TimeUnit.MILLISECONDS.sleep(backoff);
+                    backoff = Math.min(backoff * 2L, MAX_BACKOFF_MILLIS);
+                }
+            }
+        }
+
+        private void send(ByteBuffer frames) throws IOException {
+            if (channel == null) {
+                connect();
+            }
+            final long deadline = System.nanoTime() + writeTimeoutNanos;
+            while (frames.hasRemaining()) {
+                if (channel.write(frames) > 0) {
+                    continue;
+                }
+                final long remainingNanos = deadline - System.nanoTime();
+                if (remainingNanos <= 0L) {
+                    throw new SocketTimeoutException("Write timed out");
+                }
+                selector.select(Math.max(1L, TimeUnit.NANOSECONDS.toMillis(remainingNanos)));
+                selector.selectedKeys().clear();
+                if (Thread.currentThread().isInterrupted()) {
+                    throw new InterruptedIOException("Interrupted while writing");
+                }
+            }
+            sent.mark(encodedMessages);
+            unsent.addAndGet(-encodedMessages);
+        }
+
+        private void connect() throws IOException {
+            final SocketChannel newChannel = SocketChannel.open();
+            Selector newSelector = null;
+            try {
+                newChannel.socket().setKeepAlive(true);
+                newChannel.socket().setTcpNoDelay(true);
+                newChannel.socket().connect(new InetSocketAddress(remote.getHost(), remote.getPort()), CONNECT_TIMEOUT_MILLIS);
+                newChannel.configureBlocking(false);
+                newSelector = Selector.open();
+                newChannel.register(newSelector, SelectionKey.OP_WRITE);
+            } catch (IOException e) {
+                newChannel.close();
+                if (newSelector != null) {
+                    newSelector.close();
+                }
+                throw e;
+            }
+            channel = newChannel;
+            selector = newSelector;
+            connections.incrementAndGet();
+        }
+
+        private void disconnect() {
+            if (channel != null) {
+                try {
+                    selector.close();
+                    channel.close();
+                } catch (IOException ignored) {
+                    // The connection is being discarded anyway
+                }
+                channel = null;
+                selector = null;
+                connections.decrementAndGet();
+            }
+        }
+    }
+}
@@ -0,0 +1,141 @@
+/**
+ * Graylog Internal Logs Plugin - Internal Logs plugin for Graylog
+ * Copyright © 2016 Graylog, Inc. (hello@graylog.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.internallogs.transport;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Supplier;
+import com.google.common.base.Suppliers;
+import com.google.common.collect.ImmutableSet;
+import org.graylog2.plugin.Message;
+import org.joda.time.DateTime;
+
+import javax.annotation.Nullable;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * Encodes decoded internal log messages as GELF 1.1 JSON, so they can be received by a regular GELF TCP input.
+ * <p>
+ * GELF inputs reject messages with a blank {@code host} or {@code short_message}. A missing source falls back to the
+ * ID of the node which logged the message, or to the name of the local host, and an empty message to a placeholder.
+ */
+public final class GelfMessageEncoder {
+    @VisibleForTesting
+    static final String EMPTY_MESSAGE = "(empty message)";
+    private static final String UNKNOWN_HOST = "unknown";
+    private static final String FIELD_NODE_ID = "node_id";
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+    // Resolved once and only when needed, since the lookup might block
+    private static final Supplier<String> LOCAL_HOST_NAME = Suppliers.memoize(GelfMessageEncoder::resolveLocalHostName);
+    private static final Set<String> STANDARD_FIELDS = ImmutableSet.of(
+            Message.FIELD_ID,
+            Message.FIELD_MESSAGE,
+            Message.FIELD_FULL_MESSAGE,
+            Message.FIELD_SOURCE,
+            Message.FIELD_TIMESTAMP,
+            Message.FIELD_LEVEL);
+
+    private GelfMessageEncoder() {
+    }
+
+    public static byte[] encode(Message message) {
+        final ByteArrayOutputStream outputStream = new ByteArrayOutputStream(512);
+        try (final JsonGenerator generator = JSON_FACTORY.createGenerator(outputStream, JsonEncoding.UTF8)) {
+            generator.writeStartObject();
+            generator.writeStringField("version", "1.1");
+            generator.writeStringField("host", getHost(message));
+            final String shortMessage = message.getMessage();
+            generator.writeStringField("short_message", isBlank(shortMessage) ? EMPTY_MESSAGE : shortMessage);
+            final Object fullMessage = message.getField(Message.FIELD_FULL_MESSAGE);
+            if (fullMessage != null) {
+                generator.writeStringField("full_message", fullMessage.toString());
+            }
+            final DateTime timestamp = message.getTimestamp();
+            if (timestamp != null) {
+                generator.writeNumberField("timestamp", timestamp.getMillis() / 1000.0d);
+            }
+            final Object level = message.getField(Message.FIELD_LEVEL);
+            if (level instanceof Number) {
+                generator.writeNumberField("level", ((Number) level).intValue());
+            }
+
+            for (Map.Entry<String, Object> field : message.getFields().entrySet()) {
+                final String key = field.getKey();
+                final Object value = field.getValue();
+                if (value == null || STANDARD_FIELDS.contains(key)) {
+                    continue;
+                }
+                // GELF only supports strings and numbers as values of additional fields
+                generator.writeFieldName("_" + key);
+                if (value instanceof Double || value instanceof Float) {
+                    final double number = ((Number) value).doubleValue();
+                    if (Double.isFinite(number)) {
+                        generator.writeNumber(number);
+                    } else {
+                        generator.writeString(value.toString());
+                    }
+                } else if (value instanceof Number) {
+                    generator.writeNumber(((Number) value).longValue());
+                } else if (value instanceof Collection) {
+                    generator.writeString(((Collection<?>) value).stream().map(String::valueOf).collect(Collectors.joining(", ")));
+                } else {
+                    generator.writeString(value.toString());
+                }
+            }
+            generator.writeEndObject();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return outputStream.toByteArray();
+    }
+
+    private static String getHost(Message message) {
+        final String source = message.getSource();
+        if (!isBlank(source)) {
+            return source;
+        }
+        final Object nodeId = message.getField(FIELD_NODE_ID);
+        if (nodeId != null && !isBlank(nodeId.toString())) {
+            return nodeId.toString();
+        }
+        return LOCAL_HOST_NAME.get();
+    }
+
+    private static String resolveLocalHostName() {
+        try {
+            final String hostName = InetAddress.getLocalHost().getHostName();
+            return isBlank(hostName) ? UNKNOWN_HOST : hostName;
+        } catch (UnknownHostException | SecurityException e) {
+            return UNKNOWN_HOST;
+        }
+    }
+
+    private static boolean isBlank(@Nullable String value) {
+        return value == null || value.trim().isEmpty();
+    }
+}
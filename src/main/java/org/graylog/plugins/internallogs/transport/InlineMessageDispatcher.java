@@ -0,0 +1,56 @@
+/**
+ * Graylog Internal Logs Plugin - Internal Logs plugin for Graylog
+ * Copyright © 2016 Graylog, Inc. (hello@graylog.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.internallogs.transport;
+
+import org.apache.logging.log4j.Level;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Passes each serialized log event directly to the sink on the calling (logging) thread.
+ */
+public class InlineMessageDispatcher implements MessageDispatcher {
+    private final Consumer<byte[]> sink;
+
+    public InlineMessageDispatcher(Consumer<byte[]> sink) {
+        this.sink = requireNonNull(sink);
+    }
+
+    @Override
+    public void dispatch(Level level, byte[] payload) {
+        sink.accept(payload);
+    }
+
+    @Override
+    public int getQueueDepth() {
+        return 0;
+    }
+
+    @Override
+    public int getQueueCapacity() {
+        return 0;
+    }
+
+    @Override
+    public int stop(long timeout, TimeUnit unit) {
+        return 0;
+    }
+}
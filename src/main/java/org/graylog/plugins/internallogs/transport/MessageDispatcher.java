@@ -0,0 +1,121 @@
+/**
+ * Graylog Internal Logs Plugin - Internal Logs plugin for Graylog
+ * Copyright © 2016 Graylog, Inc. (hello@graylog.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.internallogs.transport;
+
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.logging.log4j.Level;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Hands serialized log events from the appender over to the message input.
+ */
+public interface MessageDispatcher {
+    void dispatch(Level level, byte[] payload);
+
+    int getQueueDepth();
+
+    int getQueueCapacity();
+
+    /**
+     * Stops accepting events and waits up to the given time until all pending events have been handed over.
+     *
+     * @return the number of pending events which have been discarded
+     */
+    int stop(long timeout, TimeUnit unit);
+
+    enum Mode {
+        /**
+         * Call the message input on the logging thread.
+         */
+        INLINE,
+        /**
+         * Enqueue the event for a bounded pool of platform threads.
+         */
+        PLATFORM,
+        /**
+         * Enqueue the event for a virtual thread, falling back to {@link #PLATFORM} if the JVM doesn't support them.
+         */
+        VIRTUAL,
+        /**
+         * Enqueue the event into a bounded lane per severity class, drained by platform threads with priority
+         * for WARN, ERROR and FATAL.
+         */
+        PRIORITY;
+
+        public static Mode fromString(String mode, Mode defaultMode) {
+            if (mode == null) {
+                return defaultMode;
+            }
+            try {
+                return valueOf(mode.toUpperCase(Locale.ENGLISH));
+            } catch (IllegalArgumentException e) {
+                return defaultMode;
+            }
+        }
+    }
+
+    static MessageDispatcher create(Mode mode, int threads, int queueSize, Consumer<byte[]> sink, MetricRegistry metricRegistry) {
+        switch (mode) {
+            case INLINE:
+                return new InlineMessageDispatcher(sink);
+            case PRIORITY:
+                return new PriorityLaneMessageDispatcher(createThreadFactory(), threads, queueSize, sink, metricRegistry);
+            case VIRTUAL:
+                final ExecutorService virtualThreadExecutor = VirtualThreads.newVirtualThreadPerTaskExecutor();
+                if (virtualThreadExecutor != null) {
+                    return new ExecutorMessageDispatcher(virtualThreadExecutor, queueSize, sink, metricRegistry);
+                }
+                // fall through
+            case PLATFORM:
+            default:
+                return new ExecutorMessageDispatcher(Executors.newFixedThreadPool(threads, createThreadFactory()), queueSize, sink, metricRegistry);
+        }
+    }
+
+    static ThreadFactory createThreadFactory() {
+        return new ThreadFactoryBuilder()
+                .setNameFormat("internal-logs-dispatcher-%d")
+                .setDaemon(true)
+                .build();
+    }
+
+    final class VirtualThreads {
+        private static final Logger LOG = LoggerFactory.getLogger(VirtualThreads.class);
+
+        private VirtualThreads() {
+        }
+
+        static ExecutorService newVirtualThreadPerTaskExecutor() {
+            try {
+                return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            } catch (ReflectiveOperationException e) {
+                LOG.warn("Virtual threads are not supported by this JVM, using platform threads.");
+                return null;
+            }
+        }
+    }
+}
@@ -0,0 +1,209 @@
+/**
+ * Graylog Internal Logs Plugin - Internal Logs plugin for Graylog
+ * Copyright © 2016 Graylog, Inc. (hello@graylog.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.internallogs.transport;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import org.apache.logging.log4j.Level;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Enqueues serialized log events into one bounded lane per severity class.
+ * <p>
+ * WARN, ERROR and FATAL events go into the high priority lane, everything else into the low priority lane.
+ * The drainer threads take up to {@link #HIGH_PRIORITY_WEIGHT} events from the high priority lane for every event
+ * from the low priority lane, so a flood of DEBUG or INFO events neither delays nor drops more severe events.
+ */
+public class PriorityLaneMessageDispatcher implements MessageDispatcher {
+    static final int HIGH_PRIORITY_WEIGHT = 8;
+
+    private final Consumer<byte[]> sink;
+    private final int laneCapacity;
+    private final MetricRegistry metricRegistry;
+    private final Lane highPriority;
+    private final Lane lowPriority;
+    private final Semaphore available = new Semaphore(0);
+    private final ExecutorService drainers;
+    private final Meter failed;
+    private final AtomicInteger pending = new AtomicInteger();
+    private volatile boolean stopped = false;
+
+    public PriorityLaneMessageDispatcher(ThreadFactory threadFactory,
+                                         int threads,
+                                         int laneCapacity,
+                                         Consumer<byte[]> sink,
+                                         MetricRegistry metricRegistry) {
+        this.sink = requireNonNull(sink);
+        this.laneCapacity = laneCapacity;
+        this.metricRegistry = requireNonNull(metricRegistry);
+        this.highPriority = new Lane("high", laneCapacity, metricRegistry);
+        this.lowPriority = new Lane("low", laneCapacity, metricRegistry);
+        this.failed = metricRegistry.meter(ExecutorMessageDispatcher.METRIC_FAILED);
+
+        this.drainers = Executors.newFixedThreadPool(threads, threadFactory);
+        for (int i = 0; i < threads; i++) {
+            drainers.execute(this::drain);
+        }
+    }
+
+    static boolean isHighPriority(Level level) {
+        return level.isMoreSpecificThan(Level.WARN);
+    }
+
+    @Override
+    public void dispatch(Level level, byte[] payload) {
+        final Lane lane = isHighPriority(level) ? highPriority : lowPriority;
+        if (stopped) {
+            lane.dropped.mark();
+        } else if (lane.offer(payload)) {
+            pending.incrementAndGet();
+            available.release();
+        }
+    }
+
+    private void drain() {
+        int highInARow = 0;
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                available.acquire();
+
+                // Every permit corresponds to one queued event in either lane which no other drainer has claimed.
+                final boolean preferLowPriority = highInARow >= HIGH_PRIORITY_WEIGHT;
+                Lane lane = null;
+                Entry entry = null;
+                while (entry == null) {
+                    if (!preferLowPriority || lowPriority.queue.isEmpty()) {
+                        lane = highPriority;
+                        entry = highPriority.queue.poll();
+                    }
+                    if (entry == null) {
+                        lane = lowPriority;
+                        entry = lowPriority.queue.poll();
+                    }
+                }
+
+                highInARow = lane == highPriority ? highInARow + 1 : 0;
+                process(lane, entry);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void process(Lane lane, Entry entry) {
+        try {
+            sink.accept(entry.payload);
+        } catch (Exception e) {
+            // Logging the failure would feed another event into the same failing path
+            failed.mark();
+        } finally {
+            pending.decrementAndGet();
+            lane.latency.update(System.nanoTime() - entry.enqueued, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    int getPending(Level level) {
+        return (isHighPriority(level) ? highPriority : lowPriority).queue.size();
+    }
+
+    @Override
+    public int getQueueDepth() {
+        return pending.get();
+    }
+
+    @Override
+    public int getQueueCapacity() {
+        return 2 * laneCapacity;
+    }
+
+    @Override
+    public int stop(long timeout, TimeUnit unit) {
+        stopped = true;
+        final long deadline = System.nanoTime() + unit.toNanos(timeout);
+        try {
+            while (pending.get() > 0 && System.nanoTime() < deadline) {
+                TimeUnit.MILLISECONDS.sleep(1L);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        drainers.shutdownNow();
+        highPriority.removeMetrics();
+        lowPriority.removeMetrics();
+        metricRegistry.remove(ExecutorMessageDispatcher.METRIC_FAILED);
+        return pending.get();
+    }
+
+    private static final class Entry {
+        private final byte[] payload;
+        private final long enqueued;
+
+        private Entry(byte[] payload, long enqueued) {
+            this.payload = payload;
+            this.enqueued = enqueued;
+        }
+    }
+
+    private final class Lane {
+        private final BlockingQueue<Entry> queue;
+        private final String queueSizeMetric;
+        private final String latencyMetric;
+        private final String droppedMetric;
+        private final Timer latency;
+        private final Meter dropped;
+
+        private Lane(String name, int capacity, MetricRegistry metricRegistry) {
+            this.queue = new ArrayBlockingQueue<>(capacity);
+            this.queueSizeMetric = MetricRegistry.name("dispatcher", name, "queueSize");
+            this.latencyMetric = MetricRegistry.name("dispatcher", name, "latency");
+            this.droppedMetric = MetricRegistry.name("dispatcher", name, "dropped");
+            this.latency = metricRegistry.timer(latencyMetric);
+            this.dropped = metricRegistry.meter(droppedMetric);
+
+            metricRegistry.remove(queueSizeMetric);
+            metricRegistry.register(queueSizeMetric, (Gauge<Integer>) queue::size);
+        }
+
+        private boolean offer(byte[] payload) {
+            if (queue.offer(new Entry(payload, System.nanoTime()))) {
+                return true;
+            }
+            dropped.mark();
+            return false;
+        }
+
+        private void removeMetrics() {
+            metricRegistry.remove(queueSizeMetric);
+            metricRegistry.remove(latencyMetric);
+            metricRegistry.remove(droppedMetric);
+        }
+    }
+}
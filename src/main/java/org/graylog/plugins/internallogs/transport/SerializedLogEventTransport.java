@@ -17,20 +17,29 @@
  */
 package org.graylog.plugins.internallogs.transport;
 
+import com.codahale.metrics.Gauge;
 import com.codahale.metrics.MetricSet;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.collect.ImmutableSortedMap;
+import com.google.common.net.HostAndPort;
 import com.google.inject.assistedinject.Assisted;
 import org.apache.logging.log4j.Level;
-import org.apache.logging.log4j.core.Appender;
-import org.apache.logging.log4j.core.LoggerContext;
-import org.apache.logging.log4j.core.config.LoggerConfig;
+import org.graylog.plugins.internallogs.codec.SerializedLogEventCodec;
+import org.graylog.plugins.internallogs.jfr.FlightRecorderLogEvents;
+import org.graylog.plugins.internallogs.log4j.ContextSnapshots;
 import org.graylog.plugins.internallogs.log4j.DirectConsumingAppender;
+import org.graylog.plugins.internallogs.log4j.OverheadController;
+import org.graylog.plugins.internallogs.log4j.SerializedLogEventConsumer;
+import org.graylog.plugins.internallogs.log4j.SharedAppenderRegistry;
 import org.graylog2.plugin.LocalMetricRegistry;
+import org.graylog2.plugin.Message;
 import org.graylog2.plugin.configuration.Configuration;
 import org.graylog2.plugin.configuration.ConfigurationRequest;
+import org.graylog2.plugin.configuration.fields.BooleanField;
 import org.graylog2.plugin.configuration.fields.ConfigurationField;
 import org.graylog2.plugin.configuration.fields.DropdownField;
+import org.graylog2.plugin.configuration.fields.NumberField;
+import org.graylog2.plugin.configuration.fields.TextField;
 import org.graylog2.plugin.inputs.MessageInput;
 import org.graylog2.plugin.inputs.MisfireException;
 import org.graylog2.plugin.inputs.annotations.ConfigClass;
@@ -38,27 +47,106 @@ import org.graylog2.plugin.inputs.annotations.FactoryClass;
 import org.graylog2.plugin.inputs.codecs.CodecAggregator;
 import org.graylog2.plugin.inputs.transports.Transport;
 import org.graylog2.plugin.journal.RawMessage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import javax.annotation.Nullable;
 import javax.inject.Inject;
+import java.util.Locale;
 import java.util.SortedMap;
+import java.util.concurrent.TimeUnit;
 
 import static java.util.Objects.requireNonNull;
 
 public class SerializedLogEventTransport implements Transport {
+    private static final Logger LOG = LoggerFactory.getLogger(SerializedLogEventTransport.class);
+
     private static final String CK_LEVEL_THRESHOLD = "level_threshold";
+    private static final String CK_DISPATCH_MODE = "dispatch_mode";
+    private static final String CK_DISPATCH_THREADS = "dispatch_threads";
+    private static final String CK_DISPATCH_QUEUE_SIZE = "dispatch_queue_size";
+    private static final String CK_OVERHEAD_BUDGET_MICROS = "overhead_budget_micros";
+    private static final String CK_OVERHEAD_MAX_QUEUE_PERCENT = "overhead_max_queue_percent";
+    private static final String CK_OVERHEAD_MAX_CPU_PERCENT = "overhead_max_cpu_percent";
+    private static final String CK_OUTPUT_MODE = "output_mode";
+    private static final String CK_FORWARD_HOST = "forward_host";
+    private static final String CK_FORWARD_PORT = "forward_port";
+    private static final String CK_FORWARD_CONNECTIONS = "forward_connections";
+    private static final String CK_FORWARD_BATCH_SIZE = "forward_batch_size";
+    private static final String CK_DRAIN_TIMEOUT_MILLIS = "drain_timeout_ms";
+    private static final String CK_SHARE_CONTEXT = "share_context_snapshots";
+    // Requested by the codec, whose configuration is shared with the transport
+    private static final String CK_INCLUDE_MESSAGE_PARAMETERS = "include_message_parameters";
+    private static final String CK_FLIGHT_RECORDER_EVENTS = "flight_recorder_events";
+    private static final String METRIC_OVERHEAD_STEP = "overhead.step";
+    private static final String METRIC_OVERHEAD_TRANSITIONS = "overhead.transitions";
+    private static final String METRIC_STOP_FLUSHED = "stop.flushed";
+    private static final String METRIC_STOP_DROPPED = "stop.dropped";
+    private static final String METRIC_CONTEXT_SNAPSHOT_MISSES = "context.snapshotMisses";
+    private static final String METRIC_FLIGHT_RECORDER_FAILED = "jfr.failed";
     private static final Level DEFAULT_LEVEL = Level.INFO;
+    private static final MessageDispatcher.Mode DEFAULT_DISPATCH_MODE = MessageDispatcher.Mode.PLATFORM;
+    private static final int DEFAULT_DISPATCH_THREADS = 1;
+    private static final int DEFAULT_DISPATCH_QUEUE_SIZE = 8192;
+    private static final OutputMode DEFAULT_OUTPUT_MODE = OutputMode.JOURNAL;
+    private static final int DEFAULT_FORWARD_PORT = 12201;
+    private static final int DEFAULT_FORWARD_CONNECTIONS = 1;
+    private static final int DEFAULT_FORWARD_BATCH_SIZE = 100;
+    private static final int DEFAULT_DRAIN_TIMEOUT_MILLIS = 2000;
 
     private final Configuration configuration;
     private final LocalMetricRegistry metricRegistry;
+    private final SharedAppenderRegistry appenderRegistry;
+    private final OverheadController overheadController;
+    private final FlightRecorderLogEvents flightRecorderLogEvents;
+    private final SerializedLogEventCodec.Factory codecFactory;
+    private final MessageDispatcher.Mode dispatchMode;
+    private final int dispatchThreads;
+    private final int dispatchQueueSize;
+    private final long overheadBudgetNanos;
+    private final int overheadMaxQueuePercent;
+    private final int overheadMaxCpuPercent;
+    private final OutputMode outputMode;
+    private final int forwardConnections;
+    private final int forwardBatchSize;
+    private final long drainTimeoutMillis;
+    private final boolean shareContext;
+    private final boolean includeMessageParameters;
+    private final boolean recordFlightRecorderEvents;
     private DirectConsumingAppender appender;
+    private MessageDispatcher dispatcher;
+    private SerializedLogEventConsumer logEventConsumer;
     private Level threshold;
+    private boolean flightRecorderEventsEnabled = false;
 
     @Inject
     public SerializedLogEventTransport(@Assisted Configuration configuration,
-                                       LocalMetricRegistry metricRegistry) {
+                                       LocalMetricRegistry metricRegistry,
+                                       SharedAppenderRegistry appenderRegistry,
+                                       OverheadController overheadController,
+                                       FlightRecorderLogEvents flightRecorderLogEvents,
+                                       SerializedLogEventCodec.Factory codecFactory) {
         this.configuration = configuration;
         this.metricRegistry = requireNonNull(metricRegistry);
+        this.appenderRegistry = requireNonNull(appenderRegistry);
+        this.overheadController = requireNonNull(overheadController);
+        this.flightRecorderLogEvents = requireNonNull(flightRecorderLogEvents);
+        this.codecFactory = requireNonNull(codecFactory);
         this.threshold = Level.toLevel(configuration.getString(CK_LEVEL_THRESHOLD), DEFAULT_LEVEL);
+        this.dispatchMode = MessageDispatcher.Mode.fromString(configuration.getString(CK_DISPATCH_MODE), DEFAULT_DISPATCH_MODE);
+        this.dispatchThreads = Math.max(1, configuration.getInt(CK_DISPATCH_THREADS, DEFAULT_DISPATCH_THREADS));
+        this.dispatchQueueSize = Math.max(1, configuration.getInt(CK_DISPATCH_QUEUE_SIZE, DEFAULT_DISPATCH_QUEUE_SIZE));
+        this.overheadBudgetNanos = TimeUnit.MICROSECONDS.toNanos(Math.max(0, configuration.getInt(CK_OVERHEAD_BUDGET_MICROS, 0)));
+        this.overheadMaxQueuePercent = Math.max(0, configuration.getInt(CK_OVERHEAD_MAX_QUEUE_PERCENT, 0));
+        this.overheadMaxCpuPercent = Math.max(0, configuration.getInt(CK_OVERHEAD_MAX_CPU_PERCENT, 0));
+        this.outputMode = OutputMode.fromString(configuration.getString(CK_OUTPUT_MODE), DEFAULT_OUTPUT_MODE);
+        this.forwardConnections = Math.max(1, configuration.getInt(CK_FORWARD_CONNECTIONS, DEFAULT_FORWARD_CONNECTIONS));
+        this.forwardBatchSize = Math.max(1, configuration.getInt(CK_FORWARD_BATCH_SIZE, DEFAULT_FORWARD_BATCH_SIZE));
+        this.drainTimeoutMillis = Math.max(0, configuration.getInt(CK_DRAIN_TIMEOUT_MILLIS, DEFAULT_DRAIN_TIMEOUT_MILLIS));
+        // Context snapshots only exist in this JVM, so forwarded messages have to carry their context data
+        this.shareContext = configuration.getBoolean(CK_SHARE_CONTEXT, false) && outputMode == OutputMode.JOURNAL;
+        this.includeMessageParameters = configuration.getBoolean(CK_INCLUDE_MESSAGE_PARAMETERS, false);
+        this.recordFlightRecorderEvents = configuration.getBoolean(CK_FLIGHT_RECORDER_EVENTS, false);
     }
 
     @VisibleForTesting
@@ -66,50 +154,88 @@ public class SerializedLogEventTransport implements Transport {
         return appender;
     }
 
-    @VisibleForTesting
-    protected void setAppender(DirectConsumingAppender appender) {
-        this.appender = appender;
-    }
-
     @Override
     public void launch(MessageInput input) throws MisfireException {
-        appender = new DirectConsumingAppender(
-                "graylog-plugin-internal-logs",
-                logEvent -> input.processRawMessage(new RawMessage(logEvent)),
-                threshold);
-        addAppender(appender);
+        if (outputMode == OutputMode.FORWARD) {
+            // Encode on the sender threads with the same settings as the codec of this input
+            final SerializedLogEventCodec codec = codecFactory.create(configuration);
+            dispatcher = new ForwardingMessageDispatcher(getForwardTarget(), forwardConnections, forwardBatchSize,
+                    dispatchQueueSize, payload -> encodeGelf(codec, payload), metricRegistry);
+        } else {
+            dispatcher = MessageDispatcher.create(dispatchMode, dispatchThreads, dispatchQueueSize,
+                    logEvent -> input.processRawMessage(new RawMessage(logEvent)), metricRegistry);
+        }
+        logEventConsumer = dispatcher::dispatch;
+        if (recordFlightRecorderEvents) {
+            flightRecorderLogEvents.enable();
+            flightRecorderEventsEnabled = true;
+            metricRegistry.remove(METRIC_FLIGHT_RECORDER_FAILED);
+            metricRegistry.register(METRIC_FLIGHT_RECORDER_FAILED, (Gauge<Boolean>) flightRecorderLogEvents::hasFailed);
+        }
+        appender = appenderRegistry.register(logEventConsumer, threshold, shareContext, includeMessageParameters);
+        if (shareContext) {
+            final ContextSnapshots contextSnapshots = appenderRegistry.getContextSnapshots();
+            metricRegistry.remove(METRIC_CONTEXT_SNAPSHOT_MISSES);
+            metricRegistry.register(METRIC_CONTEXT_SNAPSHOT_MISSES, (Gauge<Long>) contextSnapshots::getMisses);
+        }
+
+        if (overheadBudgetNanos > 0L || overheadMaxCpuPercent > 0 || overheadMaxQueuePercent > 0) {
+            final MessageDispatcher currentDispatcher = dispatcher;
+            overheadController.addBudget(this, overheadBudgetNanos, overheadMaxCpuPercent, overheadMaxQueuePercent,
+                    currentDispatcher::getQueueDepth, currentDispatcher.getQueueCapacity());
+            metricRegistry.remove(METRIC_OVERHEAD_STEP);
+            metricRegistry.register(METRIC_OVERHEAD_STEP, (Gauge<Integer>) () -> overheadController.getStep().ordinal());
+            metricRegistry.remove(METRIC_OVERHEAD_TRANSITIONS);
+            metricRegistry.register(METRIC_OVERHEAD_TRANSITIONS, (Gauge<Long>) overheadController::getTransitions);
+        }
     }
 
-    private void addAppender(Appender appender) {
-        final LoggerContext context = LoggerContext.getContext(false);
-        final org.apache.logging.log4j.core.config.Configuration config = context.getConfiguration();
-        appender.start();
-        config.addAppender(appender);
+    @Nullable
+    private static byte[] encodeGelf(SerializedLogEventCodec codec, byte[] payload) {
+        final Message message = codec.decode(new RawMessage(payload));
+        return message == null ? null : GelfMessageEncoder.encode(message);
+    }
 
-        for (final LoggerConfig loggerConfig : config.getLoggers().values()) {
-            loggerConfig.addAppender(appender, null, null);
+    private HostAndPort getForwardTarget() throws MisfireException {
+        final String host = configuration.getString(CK_FORWARD_HOST);
+        if (host == null || host.trim().isEmpty()) {
+            throw new MisfireException("Forwarding internal log messages requires a remote host");
+        }
+        final int port = configuration.getInt(CK_FORWARD_PORT, DEFAULT_FORWARD_PORT);
+        try {
+            return HostAndPort.fromParts(host.trim(), port);
+        } catch (IllegalArgumentException e) {
+            throw new MisfireException("Invalid forwarding target " + host + ":" + port, e);
         }
-        config.getRootLogger().addAppender(appender, null, null);
-        context.updateLoggers();
     }
 
     @Override
     public void stop() {
-        if (appender != null) {
-            removeAppender(appender.getName());
-            appender.stop();
+        overheadController.removeBudget(this);
+        if (flightRecorderEventsEnabled) {
+            flightRecorderLogEvents.disable();
+            flightRecorderEventsEnabled = false;
         }
-    }
-
-    private void removeAppender(String name) {
-        final LoggerContext context = LoggerContext.getContext(false);
-        final org.apache.logging.log4j.core.config.Configuration config = context.getConfiguration();
-
-        for (final LoggerConfig loggerConfig : config.getLoggers().values()) {
-            loggerConfig.removeAppender(name);
+        metricRegistry.remove(METRIC_OVERHEAD_STEP);
+        metricRegistry.remove(METRIC_OVERHEAD_TRANSITIONS);
+        metricRegistry.remove(METRIC_CONTEXT_SNAPSHOT_MISSES);
+        metricRegistry.remove(METRIC_FLIGHT_RECORDER_FAILED);
+        if (logEventConsumer != null) {
+            appenderRegistry.unregister(logEventConsumer);
+            logEventConsumer = null;
+            appender = null;
+        }
+        if (dispatcher != null) {
+            // The appender doesn't hand over new events anymore, so no Log4j locks are held while draining
+            final int pending = dispatcher.getQueueDepth();
+            final int dropped = dispatcher.stop(drainTimeoutMillis, TimeUnit.MILLISECONDS);
+            metricRegistry.counter(METRIC_STOP_FLUSHED).inc(Math.max(0, pending - dropped));
+            metricRegistry.counter(METRIC_STOP_DROPPED).inc(dropped);
+            if (dropped > 0) {
+                LOG.warn("Dropped {} internal log messages which couldn't be handed over within {} ms", dropped, drainTimeoutMillis);
+            }
+            dispatcher = null;
         }
-        config.getRootLogger().removeAppender(name);
-        context.updateLoggers();
     }
 
     @Override
@@ -121,6 +247,28 @@ public class SerializedLogEventTransport implements Transport {
         return metricRegistry;
     }
 
+    public enum OutputMode {
+        /**
+         * Write internal log messages into the local journal of this node.
+         */
+        JOURNAL,
+        /**
+         * Forward internal log messages as GELF via TCP to a remote endpoint, e.g. a separate monitoring cluster.
+         */
+        FORWARD;
+
+        public static OutputMode fromString(String mode, OutputMode defaultMode) {
+            if (mode == null) {
+                return defaultMode;
+            }
+            try {
+                return valueOf(mode.toUpperCase(Locale.ENGLISH));
+            } catch (IllegalArgumentException e) {
+                return defaultMode;
+            }
+        }
+    }
+
     @FactoryClass
     public interface Factory extends Transport.Factory<SerializedLogEventTransport> {
         @Override
@@ -157,6 +305,137 @@ public class SerializedLogEventTransport implements Transport {
                             ConfigurationField.Optional.NOT_OPTIONAL)
             );
 
+            final SortedMap<String, String> dispatchModes = ImmutableSortedMap.of(
+                    MessageDispatcher.Mode.INLINE.name(), "Inline (on the logging thread)",
+                    MessageDispatcher.Mode.PLATFORM.name(), "Thread pool",
+                    MessageDispatcher.Mode.PRIORITY.name(), "Thread pool with severity priority lanes",
+                    MessageDispatcher.Mode.VIRTUAL.name(), "Virtual threads (Java 21+)");
+            configurationRequest.addField(
+                    new DropdownField(
+                            CK_DISPATCH_MODE,
+                            "Dispatch mode",
+                            DEFAULT_DISPATCH_MODE.name(),
+                            dispatchModes,
+                            "How internal log messages are handed over to the journal. Thread pools and virtual threads decouple logging threads from journal write latency.",
+                            ConfigurationField.Optional.OPTIONAL)
+            );
+            configurationRequest.addField(
+                    new NumberField(
+                            CK_DISPATCH_THREADS,
+                            "Dispatch threads",
+                            DEFAULT_DISPATCH_THREADS,
+                            "Number of threads writing internal log messages to the journal when using a thread pool.",
+                            ConfigurationField.Optional.OPTIONAL,
+                            NumberField.Attribute.ONLY_POSITIVE)
+            );
+            configurationRequest.addField(
+                    new NumberField(
+                            CK_DISPATCH_QUEUE_SIZE,
+                            "Dispatch queue size",
+                            DEFAULT_DISPATCH_QUEUE_SIZE,
+                            "Maximum number of pending internal log messages (per lane when using priority lanes). Messages exceeding this limit will be dropped.",
+                            ConfigurationField.Optional.OPTIONAL,
+                            NumberField.Attribute.ONLY_POSITIVE)
+            );
+            configurationRequest.addField(
+                    new NumberField(
+                            CK_OVERHEAD_BUDGET_MICROS,
+                            "Overhead budget (µs per log call)",
+                            0,
+                            "Maximum average time in microseconds spent per internal log message. When exceeded, source information and stack traces are dropped, the threshold is raised and messages are sampled until the overhead recovers. 0 disables this budget.",
+                            ConfigurationField.Optional.OPTIONAL,
+                            NumberField.Attribute.ONLY_POSITIVE)
+            );
+            configurationRequest.addField(
+                    new NumberField(
+                            CK_OVERHEAD_MAX_CPU_PERCENT,
+                            "Overhead budget (CPU %)",
+                            0,
+                            "Maximum share of the CPU time of all processors of this node spent in the internal logs appender, in percent, before degrading internal log messages like above. 0 disables this budget.",
+                            ConfigurationField.Optional.OPTIONAL,
+                            NumberField.Attribute.ONLY_POSITIVE)
+            );
+            configurationRequest.addField(
+                    new NumberField(
+                            CK_OVERHEAD_MAX_QUEUE_PERCENT,
+                            "Overhead budget (queue fill %)",
+                            0,
+                            "Maximum fill level of the dispatch queue in percent before degrading internal log messages like above. 0 disables this budget.",
+                            ConfigurationField.Optional.OPTIONAL,
+                            NumberField.Attribute.ONLY_POSITIVE)
+            );
+
+            final SortedMap<String, String> outputModes = ImmutableSortedMap.of(
+                    OutputMode.JOURNAL.name(), "Local journal",
+                    OutputMode.FORWARD.name(), "Forward via GELF TCP");
+            configurationRequest.addField(
+                    new DropdownField(
+                            CK_OUTPUT_MODE,
+                            "Output mode",
+                            DEFAULT_OUTPUT_MODE.name(),
+                            outputModes,
+                            "Whether internal log messages are written into the local journal or forwarded to a remote endpoint, e.g. a separate monitoring cluster. The dispatch mode and threads don't apply to forwarding.",
+                            ConfigurationField.Optional.OPTIONAL)
+            );
+            configurationRequest.addField(
+                    new TextField(
+                            CK_FORWARD_HOST,
+                            "Forwarding host",
+                            "",
+                            "Remote host receiving internal log messages when forwarding, e.g. a GELF TCP input of a separate monitoring cluster. Each message is sent as GELF followed by a null byte.",
+                            ConfigurationField.Optional.OPTIONAL)
+            );
+            configurationRequest.addField(
+                    new NumberField(
+                            CK_FORWARD_PORT,
+                            "Forwarding port",
+                            DEFAULT_FORWARD_PORT,
+                            "Remote port of the GELF TCP input receiving internal log messages when forwarding.",
+                            ConfigurationField.Optional.OPTIONAL,
+                            NumberField.Attribute.IS_PORT_NUMBER)
+            );
+            configurationRequest.addField(
+                    new NumberField(
+                            CK_FORWARD_CONNECTIONS,
+                            "Forwarding connections",
+                            DEFAULT_FORWARD_CONNECTIONS,
+                            "Number of persistent connections to the remote endpoint when forwarding.",
+                            ConfigurationField.Optional.OPTIONAL,
+                            NumberField.Attribute.ONLY_POSITIVE)
+            );
+            configurationRequest.addField(
+                    new NumberField(
+                            CK_FORWARD_BATCH_SIZE,
+                            "Forwarding batch size",
+                            DEFAULT_FORWARD_BATCH_SIZE,
+                            "Maximum number of internal log messages sent at once when forwarding. The dispatch queue size limits the number of buffered messages while the remote endpoint is unavailable.",
+                            ConfigurationField.Optional.OPTIONAL,
+                            NumberField.Attribute.ONLY_POSITIVE)
+            );
+            configurationRequest.addField(
+                    new BooleanField(
+                            CK_SHARE_CONTEXT,
+                            "Share thread context snapshots",
+                            false,
+                            "Whether identical thread context maps are written into the journal only once per node. Snapshots are kept in memory only, so messages decoded after a restart or after a large journal backlog lose their thread context. Doesn't apply to forwarding.")
+            );
+            configurationRequest.addField(
+                    new BooleanField(
+                            CK_FLIGHT_RECORDER_EVENTS,
+                            "Java Flight Recorder events",
+                            false,
+                            "Whether to additionally record internal log messages above the level threshold as Java Flight Recorder events (level, logger, thread, message template, exception class) while a recording is running. Requires a JVM with JFR support.")
+            );
+            configurationRequest.addField(
+                    new NumberField(
+                            CK_DRAIN_TIMEOUT_MILLIS,
+                            "Drain timeout (ms)",
+                            DEFAULT_DRAIN_TIMEOUT_MILLIS,
+                            "Maximum time in milliseconds to wait for pending internal log messages when the input is stopped. Messages which couldn't be handed over in time are dropped.",
+                            ConfigurationField.Optional.OPTIONAL,
+                            NumberField.Attribute.ONLY_POSITIVE)
+            );
+
             return configurationRequest;
         }
     }
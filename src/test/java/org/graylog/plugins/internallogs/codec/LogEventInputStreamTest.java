@@ -0,0 +1,149 @@
+/**
+ * Graylog Internal Logs Plugin - Internal Logs plugin for Graylog
+ * Copyright © 2016 Graylog, Inc. (hello@graylog.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.internallogs.codec;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.primitives.Bytes;
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.MarkerManager;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.impl.Log4jLogEvent;
+import org.apache.logging.log4j.core.impl.ThrowableProxy;
+import org.apache.logging.log4j.core.layout.SerializedLayout;
+import org.apache.logging.log4j.message.ParameterizedMessage;
+import org.apache.logging.log4j.message.SimpleMessage;
+import org.apache.logging.log4j.spi.MutableThreadContextStack;
+import org.apache.logging.log4j.util.SortedArrayStringMap;
+import org.junit.Test;
+
+import javax.management.BadAttributeValueExpException;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InvalidClassException;
+import java.io.ObjectOutputStream;
+import java.rmi.MarshalledObject;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.junit.Assume.assumeTrue;
+
+public class LogEventInputStreamTest {
+    private static byte[] serialize(Object object) throws IOException {
+        try (final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+             final ObjectOutputStream outputStream = new ObjectOutputStream(baos)) {
+            outputStream.writeObject(object);
+            outputStream.flush();
+            return baos.toByteArray();
+        }
+    }
+
+    private static Object deserialize(byte[] payload) throws Exception {
+        try (final LogEventInputStream inputStream = new LogEventInputStream(new ByteArrayInputStream(payload))) {
+            return inputStream.readObject();
+        }
+    }
+
+    @Test
+    public void readObjectAcceptsLogEventsSerializedWithSerializedLayout() throws Exception {
+        final SortedArrayStringMap contextData = new SortedArrayStringMap(1);
+        contextData.putValue("foobar", "quux");
+        final LogEvent logEvent = Log4jLogEvent.newBuilder()
+                .setLoggerName("org.example.Test")
+                .setLevel(Level.WARN)
+                .setMarker(MarkerManager.getMarker("TestMarker"))
+                .setMessage(new ParameterizedMessage("Connecting to {} on port {}", "example.org", 9200))
+                .setContextData(contextData)
+                .setContextStack(new MutableThreadContextStack(ImmutableList.of("one", "two")))
+                .setThrownProxy(new ThrowableProxy(new IllegalStateException("Test", new IllegalArgumentException("cause"))))
+                .setSource(new StackTraceElement("org.example.Test", "test", "Test.java", 42))
+                .setIncludeLocation(true)
+                .build();
+        final SerializedLayout layout = SerializedLayout.createLayout();
+        final byte[] payload = Bytes.concat(layout.getHeader(), layout.toByteArray(logEvent));
+
+        // Deserialize twice to also use the cached classes
+        for (int i = 0; i < 2; i++) {
+            final LogEvent deserialized = (LogEvent) deserialize(payload);
+            assertThat(deserialized.getMessage().getFormattedMessage()).isEqualTo("Connecting to example.org on port 9200");
+            assertThat(deserialized.getLevel()).isEqualTo(Level.WARN);
+            assertThat(deserialized.getMarker().getName()).isEqualTo("TestMarker");
+            assertThat(deserialized.getContextData().toMap()).containsEntry("foobar", "quux");
+            assertThat(deserialized.getContextStack().asList()).containsExactly("one", "two");
+            assertThat(deserialized.getThrownProxy().getName()).isEqualTo(IllegalStateException.class.getName());
+            assertThat(deserialized.getThrownProxy().getCauseProxy().getName()).isEqualTo(IllegalArgumentException.class.getName());
+            assertThat(deserialized.getSource().getLineNumber()).isEqualTo(42);
+        }
+    }
+
+    @Test
+    public void readObjectRejectsOtherClasses() throws Exception {
+        assertThatThrownBy(() -> deserialize(serialize(new AtomicLong(42L))))
+                .isInstanceOf(InvalidClassException.class)
+                .hasMessageContaining(AtomicLong.class.getName());
+        assertThatThrownBy(() -> deserialize(serialize(new AtomicLong[]{new AtomicLong(42L)})))
+                .isInstanceOf(InvalidClassException.class);
+    }
+
+    @Test
+    public void readObjectRejectsThrowablesWithCustomDeserialization() throws Exception {
+        assertThatThrownBy(() -> deserialize(serialize(new BadAttributeValueExpException("Test"))))
+                .isInstanceOf(InvalidClassException.class)
+                .hasMessageContaining(BadAttributeValueExpException.class.getName());
+    }
+
+    @Test
+    public void readObjectReplacesLegacyThrowablesWithNull() throws Exception {
+        final IllegalStateException exception = new IllegalStateException("Test", new IllegalArgumentException("cause"));
+        exception.addSuppressed(new UnsupportedOperationException("suppressed"));
+
+        assertThat(deserialize(serialize(exception))).isNull();
+    }
+
+    @Test
+    public void readObjectKeepsProxyOfLegacyThrowable() throws Exception {
+        final LogEvent logEvent = Log4jLogEvent.newBuilder()
+                .setLoggerName("org.example.Test")
+                .setLevel(Level.ERROR)
+                .setMessage(new SimpleMessage("Failed"))
+                .setThrown(new IllegalStateException("Test", new IllegalArgumentException("cause")))
+                .build();
+        // Serialized like the appender did before it stripped the Throwable
+        final SerializedLayout layout = SerializedLayout.createLayout();
+        final byte[] payload = Bytes.concat(layout.getHeader(), layout.toByteArray(logEvent));
+
+        final LogEvent deserialized = (LogEvent) deserialize(payload);
+        assertThat(deserialized.getMessage().getFormattedMessage()).isEqualTo("Failed");
+        assertThat(deserialized.getThrown()).isNull();
+        assertThat(deserialized.getThrownProxy().getName()).isEqualTo(IllegalStateException.class.getName());
+        assertThat(deserialized.getThrownProxy().getMessage()).isEqualTo("Test");
+        assertThat(deserialized.getThrownProxy().getCauseProxy().getName()).isEqualTo(IllegalArgumentException.class.getName());
+    }
+
+    @Test
+    public void readObjectRejectsOtherClassesInNestedStreams() throws Exception {
+        assumeTrue(LogEventInputStream.isSerialFilterSupported());
+
+        final MarshalledObject<?> marshalledObject = (MarshalledObject<?>) deserialize(serialize(new MarshalledObject<>(new AtomicLong(42L))));
+        assertThatThrownBy(marshalledObject::get).isInstanceOf(InvalidClassException.class);
+
+        final MarshalledObject<?> allowedObject = (MarshalledObject<?>) deserialize(serialize(new MarshalledObject<>("foobar")));
+        assertThat(allowedObject.get()).isEqualTo("foobar");
+    }
+}
@@ -0,0 +1,87 @@
+/**
+ * Graylog Internal Logs Plugin - Internal Logs plugin for Graylog
+ * Copyright © 2016 Graylog, Inc. (hello@graylog.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.internallogs.codec;
+
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class MessageClassifierTest {
+    private static final String RULES = "# Known failure classes\n"
+            + "es_timeout|org.graylog2.indexer|timed out\n"
+            + "es_timeout|org.graylog2.indexer|SocketTimeoutException\n"
+            + "mongo_connection|org.graylog2.database|\n"
+            + "journal_full||journal is full\n"
+            + "journal_full||uncommitted messages\n"
+            + "timeout||timeout\n";
+
+    private final MessageClassifier classifier = MessageClassifier.parse(RULES);
+
+    @Test
+    public void parseReturnsNullWithoutRules() throws Exception {
+        assertThat(MessageClassifier.parse(null)).isNull();
+        assertThat(MessageClassifier.parse("")).isNull();
+        assertThat(MessageClassifier.parse("# Only a comment\n\n")).isNull();
+    }
+
+    @Test
+    public void parseSkipsInvalidRules() throws Exception {
+        final MessageClassifier classifier = MessageClassifier.parse("missing-separators\n||keyword\nempty||\nvalid||keyword");
+        assertThat(classifier).isNotNull();
+        assertThat(classifier.classify("org.example.Test", "some keyword")).isEqualTo("valid");
+    }
+
+    @Test
+    public void classifyRequiresLoggerPrefixAndKeyword() throws Exception {
+        assertThat(classifier.classify("org.graylog2.indexer.cluster.Cluster", "Request timed out")).isEqualTo("es_timeout");
+        assertThat(classifier.classify("org.graylog2.indexer.cluster.Cluster", "Caught java.net.SocketTimeoutException: Read timed out")).isEqualTo("es_timeout");
+        assertThat(classifier.classify("org.example.Test", "Request timed out")).isNull();
+        assertThat(classifier.classify("org.graylog2.indexer.cluster.Cluster", "Everything is fine")).isNull();
+    }
+
+    @Test
+    public void classifyMatchesLoggerPrefixOnPackageBoundary() throws Exception {
+        assertThat(classifier.classify("org.graylog2.database", "Anything")).isEqualTo("mongo_connection");
+        assertThat(classifier.classify("org.graylog2.database.MongoConnection", "Anything")).isEqualTo("mongo_connection");
+        assertThat(classifier.classify("org.graylog2.databases.Other", "Anything")).isNull();
+    }
+
+    @Test
+    public void classifyMatchesKeywordsCaseInsensitivelyAnywhere() throws Exception {
+        assertThat(classifier.classify("org.example.Test", "The JOURNAL IS FULL, throttling")).isEqualTo("journal_full");
+        assertThat(classifier.classify("org.example.Test", "Too many uncommitted messages in journal")).isEqualTo("journal_full");
+        assertThat(classifier.classify(null, "journal is full")).isEqualTo("journal_full");
+        assertThat(classifier.classify("org.example.Test", null)).isNull();
+    }
+
+    @Test
+    public void classifyPrefersFirstMatchingRule() throws Exception {
+        assertThat(classifier.classify("org.graylog2.indexer.Indices", "Connection timeout, request timed out")).isEqualTo("es_timeout");
+        assertThat(classifier.classify("org.example.Test", "Connection timeout, journal is full")).isEqualTo("journal_full");
+        assertThat(classifier.classify("org.example.Test", "Connection timeout")).isEqualTo("timeout");
+    }
+
+    @Test
+    public void classifyFollowsFailureLinksForOverlappingKeywords() throws Exception {
+        final MessageClassifier classifier = MessageClassifier.parse("long||abcd\nshort||bc");
+        assertThat(classifier).isNotNull();
+        assertThat(classifier.classify(null, "xxabcxx")).isEqualTo("short");
+        assertThat(classifier.classify(null, "xxabcdxx")).isEqualTo("long");
+        assertThat(classifier.classify(null, "ababcd")).isEqualTo("long");
+    }
+}
@@ -0,0 +1,39 @@
+/**
+ * Graylog Internal Logs Plugin - Internal Logs plugin for Graylog
+ * Copyright © 2016 Graylog, Inc. (hello@graylog.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.internallogs.codec;
+
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class MessageTemplatesTest {
+    private final MessageTemplates messageTemplates = new MessageTemplates(2L);
+
+    @Test
+    public void templateIdIsStable() throws Exception {
+        final String templateId = messageTemplates.templateId("Connecting to {}");
+        assertThat(templateId).hasSize(16).isEqualTo(new MessageTemplates(2L).templateId("Connecting to {}"));
+        assertThat(messageTemplates.templateId("Connecting to {}")).isEqualTo(templateId);
+    }
+
+    @Test
+    public void differentTemplatesHaveDifferentIds() throws Exception {
+        assertThat(messageTemplates.templateId("Connecting to {}"))
+                .isNotEqualTo(messageTemplates.templateId("Disconnecting from {}"));
+    }
+}
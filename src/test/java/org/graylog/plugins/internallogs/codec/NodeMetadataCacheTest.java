@@ -0,0 +1,125 @@
+/**
+ * Graylog Internal Logs Plugin - Internal Logs plugin for Graylog
+ * Copyright © 2016 Graylog, Inc. (hello@graylog.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.internallogs.codec;
+
+import org.graylog2.cluster.Node;
+import org.graylog2.cluster.NodeNotFoundException;
+import org.graylog2.cluster.NodeService;
+import org.graylog2.plugin.cluster.ClusterConfigService;
+import org.graylog2.plugin.cluster.ClusterId;
+import org.graylog2.plugin.system.NodeId;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnit;
+import org.mockito.junit.MockitoRule;
+
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class NodeMetadataCacheTest {
+    @Rule
+    public final MockitoRule mockitoRule = MockitoJUnit.rule();
+
+    @Mock
+    private NodeId nodeId;
+    @Mock
+    private Node node;
+    @Mock
+    private NodeService nodeService;
+    @Mock
+    private ClusterConfigService clusterConfigService;
+    private final AtomicLong clock = new AtomicLong(0L);
+    private NodeMetadataCache cache;
+
+    @Before
+    public void setUp() throws Exception {
+        when(nodeId.toString()).thenReturn("node-id");
+        when(node.getHostname()).thenReturn("example.org");
+        cache = new NodeMetadataCache(nodeId, nodeService, clusterConfigService, clock::get, Runnable::run);
+    }
+
+    @Test
+    public void getLoadsMetadataOnFirstUse() throws Exception {
+        when(nodeService.byNodeId(nodeId)).thenReturn(node);
+        when(clusterConfigService.get(ClusterId.class)).thenReturn(ClusterId.create("cluster-id"));
+
+        final NodeMetadataCache.NodeMetadata metadata = cache.get();
+        assertThat(metadata.getNodeId()).isEqualTo("node-id");
+        assertThat(metadata.getHostname()).isEqualTo("example.org");
+        assertThat(metadata.getClusterId()).isEqualTo("cluster-id");
+
+        cache.get();
+        verify(nodeService, times(1)).byNodeId(nodeId);
+    }
+
+    @Test
+    public void missingValuesAreRetried() throws Exception {
+        when(nodeService.byNodeId(nodeId)).thenThrow(new NodeNotFoundException("not yet")).thenReturn(node);
+
+        assertThat(cache.get().getHostname()).isNull();
+
+        clock.addAndGet(TimeUnit.SECONDS.toMillis(10L));
+        cache.get();
+        assertThat(cache.get().getHostname()).isEqualTo("example.org");
+        assertThat(cache.get().getClusterId()).isNull();
+    }
+
+    @Test
+    public void failedRefreshKeepsPreviousValues() throws Exception {
+        when(nodeService.byNodeId(nodeId)).thenReturn(node).thenThrow(new IllegalStateException("MongoDB unavailable"));
+        when(clusterConfigService.get(ClusterId.class)).thenReturn(ClusterId.create("cluster-id"));
+
+        assertThat(cache.get().getHostname()).isEqualTo("example.org");
+
+        clock.addAndGet(TimeUnit.MINUTES.toMillis(5L));
+        cache.get();
+        final NodeMetadataCache.NodeMetadata metadata = cache.get();
+        assertThat(metadata.getHostname()).isEqualTo("example.org");
+        assertThat(metadata.getClusterId()).isEqualTo("cluster-id");
+        verify(nodeService, times(2)).byNodeId(nodeId);
+    }
+
+    @Test
+    public void rejectedRefreshIsRetried() throws Exception {
+        when(nodeService.byNodeId(nodeId)).thenThrow(new NodeNotFoundException("not yet")).thenReturn(node);
+        final AtomicInteger executions = new AtomicInteger();
+        cache = new NodeMetadataCache(nodeId, nodeService, clusterConfigService, clock::get, command -> {
+            if (executions.incrementAndGet() == 1) {
+                throw new RejectedExecutionException("Executor shut down");
+            }
+            command.run();
+        });
+
+        assertThat(cache.get().getHostname()).isNull();
+
+        clock.addAndGet(TimeUnit.SECONDS.toMillis(10L));
+        assertThat(cache.get().getHostname()).isNull();
+        cache.get();
+        assertThat(cache.get().getHostname()).isEqualTo("example.org");
+        assertThat(executions.get()).isEqualTo(2);
+    }
+}
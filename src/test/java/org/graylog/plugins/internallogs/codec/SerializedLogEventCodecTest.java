@@ -24,10 +24,14 @@ import org.apache.logging.log4j.MarkerManager;
 import org.apache.logging.log4j.core.LogEvent;
 import org.apache.logging.log4j.core.impl.MutableLogEvent;
 import org.apache.logging.log4j.core.net.Severity;
+import org.apache.logging.log4j.message.ParameterizedMessage;
 import org.apache.logging.log4j.message.SimpleMessage;
 import org.apache.logging.log4j.spi.MutableThreadContextStack;
 import org.apache.logging.log4j.util.SortedArrayStringMap;
 import org.apache.logging.log4j.util.StringMap;
+import org.graylog.plugins.internallogs.log4j.ContextSnapshots;
+import org.graylog.plugins.internallogs.log4j.DirectConsumingAppender;
+import org.graylog.plugins.internallogs.log4j.OverheadController;
 import org.graylog2.cluster.Node;
 import org.graylog2.cluster.NodeService;
 import org.graylog2.plugin.Message;
@@ -48,9 +52,12 @@ import org.mockito.junit.MockitoRule;
 import java.io.ByteArrayOutputStream;
 import java.io.ObjectOutputStream;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.List;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.verifyZeroInteractions;
 import static org.mockito.Mockito.when;
 
 public class SerializedLogEventCodecTest {
@@ -65,6 +72,8 @@ public class SerializedLogEventCodecTest {
     private NodeService nodeService;
     @Mock
     private ClusterConfigService clusterConfigService;
+    private NodeMetadataCache nodeMetadataCache;
+    private final ContextSnapshots contextSnapshots = new ContextSnapshots();
     private SerializedLogEventCodec codec;
 
     @Before
@@ -76,7 +85,13 @@ public class SerializedLogEventCodecTest {
         when(node.getHostname()).thenReturn("example.org");
         when(nodeService.byNodeId(nodeId)).thenReturn(node);
 
-        codec = new SerializedLogEventCodec(Configuration.EMPTY_CONFIGURATION, nodeId, nodeService, clusterConfigService);
+        nodeMetadataCache = new NodeMetadataCache(nodeId, nodeService, clusterConfigService, System::currentTimeMillis, Runnable::run);
+        codec = new SerializedLogEventCodec(Configuration.EMPTY_CONFIGURATION, nodeMetadataCache, contextSnapshots);
+    }
+
+    @Test
+    public void constructorDoesNotLookUpNodeMetadata() throws Exception {
+        verifyZeroInteractions(nodeService, clusterConfigService);
     }
 
     @Test
@@ -95,13 +110,7 @@ public class SerializedLogEventCodecTest {
     public void decodeWithValidRawMessagePayloadReturnsValidMessage() throws Exception {
         final DateTime timestamp = new DateTime(2016, 9, 20, 0, 0, DateTimeZone.UTC);
         final LogEvent logEvent = createLogEvent(timestamp);
-        final byte[] payload;
-        try (final ByteArrayOutputStream baos = new ByteArrayOutputStream();
-             final ObjectOutputStream outputStream = new ObjectOutputStream(baos)) {
-            outputStream.writeObject(logEvent);
-            outputStream.flush();
-            payload = baos.toByteArray();
-        }
+        final byte[] payload = serialize(logEvent);
 
         assertThat(payload).isNotNull();
 
@@ -123,27 +132,135 @@ public class SerializedLogEventCodecTest {
                 .containsEntry("context_foobar", "quux")
                 .containsEntry("context_stack", ImmutableList.of("one", "two"))
                 .containsEntry("exception_class", "java.lang.Throwable")
+                .containsEntry("exception_message", "Test")
+                .doesNotContainKeys("message_template", "template_id");
+        assertThat((String) message.getField("exception_stack_trace")).startsWith("java.lang.Throwable: Test");
+    }
+
+    @Test
+    public void decodeWithLegacyPayloadIncludingThrowableReturnsValidMessage() throws Exception {
+        final DateTime timestamp = new DateTime(2016, 9, 20, 0, 0, DateTimeZone.UTC);
+        // Payloads journaled by previous versions contain the event as serialized by SerializedLayout
+        final byte[] payload;
+        try (final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+             final ObjectOutputStream outputStream = new ObjectOutputStream(baos)) {
+            outputStream.writeObject(createLogEvent(timestamp));
+            outputStream.flush();
+            payload = baos.toByteArray();
+        }
+
+        final Message message = codec.decode(new RawMessage(payload));
+        assertThat(message).isNotNull();
+        assertThat(message.getMessage()).isEqualTo("Test");
+        assertThat(message.getTimestamp()).isEqualTo(timestamp);
+        assertThat(message.getFields())
+                .containsEntry("logger_name", "org.example.Test")
+                .containsEntry("context_foobar", "quux")
+                .containsEntry("exception_class", "java.lang.Throwable")
                 .containsEntry("exception_message", "Test");
         assertThat((String) message.getField("exception_stack_trace")).startsWith("java.lang.Throwable: Test");
     }
 
+    @Test
+    public void decodeIncludesTemplateAndParameters() throws Exception {
+        final Configuration configuration = new Configuration(ImmutableMap.of("include_message_parameters", true));
+        final SerializedLogEventCodec codec = new SerializedLogEventCodec(configuration, nodeMetadataCache, contextSnapshots);
+        final MutableLogEvent logEvent = new MutableLogEvent();
+        logEvent.setMessage(new ParameterizedMessage("Connecting to {} on port {} as {}", "example.org", 9200, null));
+        logEvent.setLevel(Level.INFO);
+        logEvent.setLoggerName("org.example.Test");
+        final List<byte[]> records = new ArrayList<>();
+        final DirectConsumingAppender appender = new DirectConsumingAppender("test", ignored -> {});
+        appender.addConsumer((level, record) -> records.add(record), Level.TRACE, false, true);
+        appender.append(logEvent.createMemento());
+        final Message message = codec.decode(new RawMessage(records.get(0)));
+
+        assertThat(message).isNotNull();
+        assertThat(message.getMessage()).isEqualTo("Connecting to example.org on port 9200 as null");
+        assertThat(message.getFields())
+                .containsEntry("message_template", "Connecting to {} on port {} as {}")
+                .containsEntry("template_id", MessageTemplates.hash("Connecting to {} on port {} as {}"))
+                .containsEntry("message_param_0", "example.org")
+                .containsEntry("message_param_1", "9200")
+                .doesNotContainKey("message_param_2");
+
+        final Message messageWithoutParameters = this.codec.decode(new RawMessage(records.get(0)));
+        assertThat(messageWithoutParameters).isNotNull();
+        assertThat(messageWithoutParameters.getFields())
+                .containsEntry("message_template", "Connecting to {} on port {} as {}")
+                .doesNotContainKey("message_param_0");
+    }
+
+    @Test
+    public void decodeAddsCategoryOfMatchingClassificationRule() throws Exception {
+        final Configuration configuration = new Configuration(ImmutableMap.of("classification_rules",
+                "es_timeout|org.graylog2.indexer|timed out\nmongo|org.graylog2.database|"));
+        final SerializedLogEventCodec codec = new SerializedLogEventCodec(configuration, nodeMetadataCache, contextSnapshots);
+        final MutableLogEvent logEvent = new MutableLogEvent();
+        logEvent.setMessage(new SimpleMessage("Request Timed Out after 60s"));
+        logEvent.setLevel(Level.ERROR);
+        logEvent.setLoggerName("org.graylog2.indexer.cluster.Cluster");
+        final Message message = codec.decode(new RawMessage(serialize(logEvent.createMemento())));
+
+        assertThat(message).isNotNull();
+        assertThat(message.getFields()).containsEntry("category", "es_timeout");
+
+        logEvent.setLoggerName("org.example.Test");
+        final Message unclassifiedMessage = codec.decode(new RawMessage(serialize(logEvent.createMemento())));
+        assertThat(unclassifiedMessage).isNotNull();
+        assertThat(unclassifiedMessage.getFields()).doesNotContainKey("category");
+    }
+
+    @Test
+    public void decodeResolvesSharedContextSnapshots() throws Exception {
+        final List<byte[]> records = new ArrayList<>();
+        final DirectConsumingAppender appender = new DirectConsumingAppender("test", logEvent -> {}, new OverheadController(), contextSnapshots);
+        appender.addConsumer((level, record) -> records.add(record), Level.TRACE, true);
+        appender.append(createLogEvent(new DateTime(2016, 9, 20, 0, 0, DateTimeZone.UTC)));
+
+        assertThat(records).hasSize(1);
+        assertThat(ContextSnapshots.hasFrameHeader(records.get(0))).isTrue();
+
+        final Message message = codec.decode(new RawMessage(records.get(0)));
+        assertThat(message).isNotNull();
+        assertThat(message.getMessage()).isEqualTo("Test");
+        assertThat(message.getFields()).containsEntry("context_foobar", "quux");
+    }
+
+    @Test
+    public void decodeWithMissingContextSnapshotOmitsContextData() throws Exception {
+        final List<byte[]> records = new ArrayList<>();
+        final DirectConsumingAppender appender = new DirectConsumingAppender("test", logEvent -> {}, new OverheadController(), new ContextSnapshots());
+        appender.addConsumer((level, record) -> records.add(record), Level.TRACE, true);
+        appender.append(createLogEvent(new DateTime(2016, 9, 20, 0, 0, DateTimeZone.UTC)));
+
+        final Message message = codec.decode(new RawMessage(records.get(0)));
+        assertThat(message).isNotNull();
+        assertThat(message.getMessage()).isEqualTo("Test");
+        assertThat(message.getFields()).doesNotContainKey("context_foobar");
+        assertThat(contextSnapshots.getMisses()).isEqualTo(1L);
+    }
+
+    private static byte[] serialize(LogEvent logEvent) {
+        final List<byte[]> records = new ArrayList<>();
+        final DirectConsumingAppender appender = new DirectConsumingAppender("test", records::add, Level.ALL);
+        appender.append(logEvent);
+        assertThat(records).hasSize(1);
+        return records.get(0);
+    }
+
     @Test
     public void decodedMessageDoesNotContainExtraInformation() throws Exception {
         final Configuration configuration = new Configuration(ImmutableMap.of(
                 "include_source", false,
                 "include_thread_context", false,
                 "include_stack_trace", false,
-                "include_exception_cause", false
+                "include_exception_cause", false,
+                "include_template", false
         ));
-        final SerializedLogEventCodec codec = new SerializedLogEventCodec(configuration, nodeId, nodeService, clusterConfigService);
+        final SerializedLogEventCodec codec = new SerializedLogEventCodec(configuration, nodeMetadataCache, contextSnapshots);
         final LogEvent logEvent = createLogEvent(new DateTime(2016, 9, 20, 0, 0, DateTimeZone.UTC));
-        final byte[] payload;
-        try (final ByteArrayOutputStream baos = new ByteArrayOutputStream();
-             final ObjectOutputStream outputStream = new ObjectOutputStream(baos)) {
-            outputStream.writeObject(logEvent);
-            outputStream.flush();
-            payload = baos.toByteArray();
-        }
+        final byte[] payload = serialize(logEvent);
 
         assertThat(payload).isNotNull();
 
@@ -154,7 +271,8 @@ public class SerializedLogEventCodecTest {
                 .doesNotContainKeys("context_stack")
                 .doesNotContainKeys("context_foobar")
                 .doesNotContainKeys("source_file_name", "source_method_name", "source_class_name", "source_line_number")
-                .doesNotContainKeys("exception_class", "exception_message", "exception_stack_trace");
+                .doesNotContainKeys("exception_class", "exception_message", "exception_stack_trace")
+                .doesNotContainKeys("message_template", "template_id", "message_param_0");
     }
 
     private LogEvent createLogEvent(DateTime timestamp) {
@@ -0,0 +1,84 @@
+/**
+ * Graylog Internal Logs Plugin - Internal Logs plugin for Graylog
+ * Copyright © 2016 Graylog, Inc. (hello@graylog.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.internallogs.jfr;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.impl.Log4jLogEvent;
+import org.apache.logging.log4j.message.ParameterizedMessage;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assume.assumeTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verifyZeroInteractions;
+
+public class FlightRecorderLogEventsTest {
+    private final FlightRecorderLogEvents flightRecorderLogEvents = new FlightRecorderLogEvents();
+
+    @Test
+    public void isDisabledByDefault() {
+        assertThat(flightRecorderLogEvents.isEnabled()).isFalse();
+    }
+
+    @Test
+    public void hasNotFailedByDefault() {
+        assertThat(flightRecorderLogEvents.hasFailed()).isFalse();
+    }
+
+    @Test
+    public void recordIgnoresEventsWhileDisabled() {
+        final LogEvent logEvent = mock(LogEvent.class);
+
+        flightRecorderLogEvents.record(logEvent);
+
+        verifyZeroInteractions(logEvent);
+    }
+
+    @Test
+    public void enableAndDisableAreCounted() {
+        flightRecorderLogEvents.enable();
+        flightRecorderLogEvents.enable();
+        flightRecorderLogEvents.disable();
+        assertThat(flightRecorderLogEvents.isEnabled()).isTrue();
+
+        flightRecorderLogEvents.disable();
+        assertThat(flightRecorderLogEvents.isEnabled()).isFalse();
+
+        flightRecorderLogEvents.disable();
+        flightRecorderLogEvents.enable();
+        assertThat(flightRecorderLogEvents.isEnabled()).isTrue();
+    }
+
+    @Test
+    public void recordEmitsEventWithoutFailing() {
+        assumeTrue(flightRecorderLogEvents.isAvailable());
+        flightRecorderLogEvents.enable();
+
+        final LogEvent logEvent = Log4jLogEvent.newBuilder()
+                .setLevel(Level.WARN)
+                .setLoggerName("org.example.Test")
+                .setMessage(new ParameterizedMessage("Hello {}", "World"))
+                .setThrown(new IllegalStateException("BOOM"))
+                .build();
+        flightRecorderLogEvents.record(logEvent);
+
+        assertThat(flightRecorderLogEvents.isAvailable()).isTrue();
+        assertThat(flightRecorderLogEvents.hasFailed()).isFalse();
+    }
+}
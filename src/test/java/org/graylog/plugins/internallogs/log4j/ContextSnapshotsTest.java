@@ -0,0 +1,92 @@
+/**
+ * Graylog Internal Logs Plugin - Internal Logs plugin for Graylog
+ * Copyright © 2016 Graylog, Inc. (hello@graylog.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.internallogs.log4j;
+
+import org.apache.logging.log4j.util.SortedArrayStringMap;
+import org.apache.logging.log4j.util.StringMap;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.entry;
+
+public class ContextSnapshotsTest {
+    private final ContextSnapshots contextSnapshots = new ContextSnapshots(2L);
+
+    private static StringMap contextData(String key, String value) {
+        final StringMap contextData = new SortedArrayStringMap(1);
+        contextData.putValue(key, value);
+        return contextData;
+    }
+
+    @Test
+    public void snapshotIdOfEmptyContextData() throws Exception {
+        assertThat(contextSnapshots.snapshotId(null)).isEqualTo(ContextSnapshots.NO_SNAPSHOT);
+        assertThat(contextSnapshots.snapshotId(new SortedArrayStringMap())).isEqualTo(ContextSnapshots.NO_SNAPSHOT);
+    }
+
+    @Test
+    public void identicalContentsShareSnapshot() throws Exception {
+        final long id = contextSnapshots.snapshotId(contextData("request_id", "1"));
+
+        assertThat(id).isNotEqualTo(ContextSnapshots.NO_SNAPSHOT);
+        assertThat(contextSnapshots.snapshotId(contextData("request_id", "1"))).isEqualTo(id);
+        assertThat(contextSnapshots.snapshotId(contextData("request_id", "2"))).isNotEqualTo(id);
+        assertThat(contextSnapshots.get(id)).containsExactly(entry("request_id", "1"));
+    }
+
+    @Test
+    public void frozenContextDataIsRecognizedByIdentity() throws Exception {
+        final StringMap contextData = contextData("request_id", "1");
+        contextData.freeze();
+
+        final long id = contextSnapshots.snapshotId(contextData);
+        assertThat(contextSnapshots.snapshotId(contextData)).isEqualTo(id);
+    }
+
+    @Test
+    public void mutableContextDataIsNotRecognizedByIdentity() throws Exception {
+        final StringMap contextData = contextData("request_id", "1");
+        final long id = contextSnapshots.snapshotId(contextData);
+
+        contextData.putValue("request_id", "2");
+        assertThat(contextSnapshots.snapshotId(contextData)).isNotEqualTo(id);
+    }
+
+    @Test
+    public void getCountsMissingSnapshots() throws Exception {
+        final long id = contextSnapshots.snapshotId(contextData("request_id", "1"));
+        for (int i = 2; i < 100; i++) {
+            contextSnapshots.snapshotId(contextData("request_id", String.valueOf(i)));
+        }
+
+        assertThat(contextSnapshots.get(id)).isNull();
+        assertThat(contextSnapshots.get(Long.MAX_VALUE)).isNull();
+        assertThat(contextSnapshots.getMisses()).isEqualTo(2L);
+    }
+
+    @Test
+    public void frameHeaderContainsSnapshotId() throws Exception {
+        final byte[] payload = new byte[ContextSnapshots.FRAME_HEADER_LENGTH + 2];
+        ContextSnapshots.writeFrameHeader(payload, 42L);
+
+        assertThat(ContextSnapshots.hasFrameHeader(payload)).isTrue();
+        assertThat(ContextSnapshots.readSnapshotId(payload)).isEqualTo(42L);
+        assertThat(ContextSnapshots.hasFrameHeader(new byte[]{(byte) 0xAC, (byte) 0xED, 0, 5})).isFalse();
+        assertThat(ContextSnapshots.hasFrameHeader(new byte[0])).isFalse();
+    }
+}
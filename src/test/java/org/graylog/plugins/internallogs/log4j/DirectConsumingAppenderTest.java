@@ -18,6 +18,7 @@
 package org.graylog.plugins.internallogs.log4j;
 
 import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.core.LogEvent;
 import org.apache.logging.log4j.core.filter.ThresholdFilter;
 import org.apache.logging.log4j.core.impl.MutableLogEvent;
 import org.apache.logging.log4j.core.layout.SerializedLayout;
@@ -67,6 +68,61 @@ public class DirectConsumingAppenderTest {
         assertThat(consumer.getProcessedLogEvents()).isEmpty();
     }
 
+    @Test
+    public void appenderSerializesOnceAndDispatchesToMatchingConsumers() throws Exception {
+        final TestConsumer debugConsumer = new TestConsumer();
+        appender.addConsumer(debugConsumer, Level.DEBUG);
+
+        final MutableLogEvent debugEvent = new MutableLogEvent();
+        debugEvent.setMessage(new SimpleMessage("Debug"));
+        debugEvent.setLevel(Level.DEBUG);
+        appender.append(debugEvent);
+
+        assertThat(consumer.getProcessedLogEvents()).isEmpty();
+        assertThat(debugConsumer.getProcessedLogEvents()).hasSize(1);
+
+        final MutableLogEvent errorEvent = new MutableLogEvent();
+        errorEvent.setMessage(new SimpleMessage("Error"));
+        errorEvent.setLevel(Level.ERROR);
+        appender.append(errorEvent);
+
+        assertThat(consumer.getProcessedLogEvents()).hasSize(1);
+        assertThat(debugConsumer.getProcessedLogEvents()).hasSize(2);
+        assertThat(consumer.getProcessedLogEvents().get(0)).isSameAs(debugConsumer.getProcessedLogEvents().get(1));
+    }
+
+    @Test
+    public void removeConsumerRestoresThreshold() throws Exception {
+        final TestConsumer debugConsumer = new TestConsumer();
+        assertThat(appender.addConsumer(debugConsumer, Level.DEBUG)).isEqualTo(2);
+        assertThat(appender.removeConsumer(debugConsumer)).isEqualTo(1);
+
+        final MutableLogEvent debugEvent = new MutableLogEvent();
+        debugEvent.setMessage(new SimpleMessage("Debug"));
+        debugEvent.setLevel(Level.DEBUG);
+        appender.append(debugEvent);
+
+        assertThat(appender.getFilter()).isInstanceOf(ThresholdFilter.class);
+        assertThat(appender.isFiltered(debugEvent)).isTrue();
+        assertThat(debugConsumer.getProcessedLogEvents()).isEmpty();
+    }
+
+    @Test
+    public void observerReceivesLogEventsBelowConsumerThresholds() throws Exception {
+        final List<LogEvent> observedLogEvents = new ArrayList<>();
+        final TestConsumer infoConsumer = new TestConsumer();
+        final DirectConsumingAppender observingAppender = new DirectConsumingAppender("test", infoConsumer, Level.INFO, observedLogEvents::add);
+
+        final MutableLogEvent debugEvent = new MutableLogEvent();
+        debugEvent.setMessage(new SimpleMessage("Debug"));
+        debugEvent.setLevel(Level.DEBUG);
+        assertThat(observingAppender.isFiltered(debugEvent)).isFalse();
+        observingAppender.append(debugEvent);
+
+        assertThat(observedLogEvents).containsExactly(debugEvent);
+        assertThat(infoConsumer.getProcessedLogEvents()).isEmpty();
+    }
+
     @Test
     public void appenderUsesName() throws Exception {
         assertThat(appender.getName()).isEqualTo("test");
@@ -82,7 +138,7 @@ public class DirectConsumingAppenderTest {
         assertThat(appender.getFilter()).isInstanceOf(ThresholdFilter.class);
     }
 
-    private static final class TestConsumer implements Consumer<byte[]> {
+    private static final class TestConsumer implements Consumer<byte[]>, SerializedLogEventConsumer {
         private final List<byte[]> processedLogEvents = new ArrayList<>();
 
         @Override
@@ -90,6 +146,11 @@ public class DirectConsumingAppenderTest {
             processedLogEvents.add(logEvent);
         }
 
+        @Override
+        public void accept(Level level, byte[] logEvent) {
+            accept(logEvent);
+        }
+
         public List<byte[]> getProcessedLogEvents() {
             return processedLogEvents;
         }
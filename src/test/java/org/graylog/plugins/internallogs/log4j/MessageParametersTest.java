@@ -0,0 +1,85 @@
+/**
+ * Graylog Internal Logs Plugin - Internal Logs plugin for Graylog
+ * Copyright © 2016 Graylog, Inc. (hello@graylog.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.internallogs.log4j;
+
+import org.apache.logging.log4j.message.ParameterizedMessage;
+import org.apache.logging.log4j.message.SimpleMessage;
+import org.junit.Test;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class MessageParametersTest {
+    @Test
+    public void toFrameReturnsNullForMessagesWithoutParameters() {
+        assertThat(MessageParameters.toFrame(new SimpleMessage("Test"))).isNull();
+        assertThat(MessageParameters.toFrame(new ParameterizedMessage("Test"))).isNull();
+    }
+
+    @Test
+    public void readFrameReturnsParametersAsStrings() {
+        final byte[] frame = MessageParameters.toFrame(new ParameterizedMessage("{} {} {}", "Grüße", 42, null));
+        assertThat(frame).isNotNull();
+        final ByteBuffer buffer = ByteBuffer.wrap(Arrays.copyOf(frame, frame.length + 3));
+
+        assertThat(MessageParameters.hasFrame(buffer)).isTrue();
+        assertThat(MessageParameters.readFrame(buffer)).containsExactly("Grüße", "42", null);
+        assertThat(buffer.position()).isEqualTo(frame.length);
+        assertThat(MessageParameters.hasFrame(buffer)).isFalse();
+    }
+
+    @Test
+    public void readFrameFailsOnTruncatedFrames() {
+        final byte[] frame = MessageParameters.toFrame(new ParameterizedMessage("{}", "foobar"));
+        assertThat(frame).isNotNull();
+        final ByteBuffer buffer = ByteBuffer.wrap(Arrays.copyOf(frame, frame.length - 1));
+
+        assertThat(MessageParameters.hasFrame(buffer)).isTrue();
+        assertThatThrownBy(() -> MessageParameters.readFrame(buffer))
+                .isInstanceOf(IllegalArgumentException.class)
+                .hasMessageContaining("Invalid length");
+    }
+
+    @Test
+    public void readFrameFailsOnTruncatedCount() {
+        final byte[] frame = MessageParameters.toFrame(new ParameterizedMessage("{}", "foobar"));
+        assertThat(frame).isNotNull();
+        // Magic and half of the number of parameters
+        final ByteBuffer buffer = ByteBuffer.wrap(Arrays.copyOf(frame, 6));
+
+        assertThatThrownBy(() -> MessageParameters.readFrame(buffer)).isInstanceOf(BufferUnderflowException.class);
+    }
+
+    @Test
+    public void readFrameFailsOnInvalidLengths() {
+        for (int length : new int[]{-2, Integer.MIN_VALUE, 4, Integer.MAX_VALUE}) {
+            final ByteBuffer buffer = ByteBuffer.allocate(15);
+            buffer.put(new byte[]{'I', 'L', 'P', 1}).putInt(1).putInt(length).put(new byte[]{'a', 'b', 'c'});
+            buffer.flip();
+
+            assertThat(MessageParameters.hasFrame(buffer)).isTrue();
+            assertThatThrownBy(() -> MessageParameters.readFrame(buffer))
+                    .isInstanceOf(IllegalArgumentException.class)
+                    .hasMessageContaining("Invalid length");
+        }
+    }
+}
@@ -0,0 +1,183 @@
+/**
+ * Graylog Internal Logs Plugin - Internal Logs plugin for Graylog
+ * Copyright © 2016 Graylog, Inc. (hello@graylog.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.internallogs.log4j;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.impl.Log4jLogEvent;
+import org.apache.logging.log4j.core.impl.ThrowableProxy;
+import org.apache.logging.log4j.message.SimpleMessage;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assume.assumeTrue;
+
+public class OverheadControllerTest {
+    private final AtomicInteger queueDepth = new AtomicInteger();
+    private OverheadController controller;
+
+    @Before
+    public void setUp() throws Exception {
+        controller = new OverheadController();
+        controller.addBudget(this, 1000L, 50, queueDepth::get, 100);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        controller.removeBudget(this);
+    }
+
+    @Test
+    public void normalStepPassesEventsThrough() throws Exception {
+        final LogEvent event = createLogEvent(Level.DEBUG, new RuntimeException("Test"));
+        assertThat(controller.admit(event)).isSameAs(event);
+    }
+
+    @Test
+    public void exceededAppendTimeBudgetStepsDown() throws Exception {
+        controller.recordAppendTime(5000L);
+        controller.evaluate();
+        assertThat(controller.getStep()).isEqualTo(OverheadController.Step.NO_SOURCE);
+        assertThat(controller.getTransitions()).isEqualTo(1L);
+
+        final LogEvent degraded = controller.admit(createLogEvent(Level.DEBUG, null));
+        assertThat(degraded).isNotNull();
+        assertThat(degraded.isIncludeLocation()).isFalse();
+        assertThat(degraded.getMessage().getFormattedMessage()).isEqualTo("Test");
+    }
+
+    @Test
+    public void exceededQueueBudgetStepsDownUntilSampling() throws Exception {
+        queueDepth.set(90);
+        for (int i = 0; i < 10; i++) {
+            controller.evaluate();
+        }
+        assertThat(controller.getStep()).isEqualTo(OverheadController.Step.SAMPLING);
+        assertThat(controller.getTransitions()).isEqualTo(4L);
+
+        assertThat(controller.admit(createLogEvent(Level.INFO, null))).isNull();
+        assertThat(controller.admit(createLogEvent(Level.ERROR, null))).isNotNull();
+
+        int admittedWarnings = 0;
+        for (int i = 0; i < 100; i++) {
+            if (controller.admit(createLogEvent(Level.WARN, null)) != null) {
+                admittedWarnings++;
+            }
+        }
+        assertThat(admittedWarnings).isEqualTo(10);
+    }
+
+    @Test
+    public void truncatedTracesStepReplacesStackTraces() throws Exception {
+        queueDepth.set(90);
+        controller.evaluate();
+        controller.evaluate();
+        assertThat(controller.getStep()).isEqualTo(OverheadController.Step.TRUNCATED_TRACES);
+
+        final RuntimeException exception = new RuntimeException("Test", new IllegalStateException("cause"));
+        final LogEvent degraded = controller.admit(createLogEvent(Level.ERROR, exception));
+        assertThat(degraded).isNotNull();
+        assertThat(degraded.getThrown()).isNull();
+        final ThrowableProxy thrownProxy = degraded.getThrownProxy();
+        assertThat(thrownProxy.getName()).isEqualTo(RuntimeException.class.getName());
+        assertThat(thrownProxy.getMessage()).isEqualTo("Test");
+        assertThat(thrownProxy.getCauseProxy()).isNull();
+        assertThat(thrownProxy.getExtendedStackTrace().length).isLessThanOrEqualTo(5);
+        assertThat(thrownProxy.getExtendedStackTraceAsString()).startsWith("java.lang.RuntimeException: Test");
+    }
+
+    @Test
+    public void exceededCpuBudgetStepsDown() throws Exception {
+        final AtomicLong clock = new AtomicLong();
+        final OverheadController cpuController = new OverheadController(clock::get, 4);
+        cpuController.addBudget(this, 0L, 10, 0, queueDepth::get, 100);
+        try {
+            // 5% of four processors
+            clock.addAndGet(TimeUnit.SECONDS.toNanos(1L));
+            cpuController.recordAppendCpuTime(TimeUnit.MILLISECONDS.toNanos(200L));
+            cpuController.evaluate();
+            assertThat(cpuController.getStep()).isEqualTo(OverheadController.Step.NORMAL);
+
+            // 20% of four processors
+            clock.addAndGet(TimeUnit.SECONDS.toNanos(1L));
+            cpuController.recordAppendCpuTime(TimeUnit.MILLISECONDS.toNanos(800L));
+            cpuController.evaluate();
+            assertThat(cpuController.getStep()).isEqualTo(OverheadController.Step.NO_SOURCE);
+        } finally {
+            cpuController.removeBudget(this);
+        }
+    }
+
+    @Test
+    public void threadCpuTimeIsOnlyMeasuredWithCpuBudget() throws Exception {
+        assertThat(controller.currentThreadCpuTime()).isNegative();
+        assumeTrue(ManagementFactory.getThreadMXBean().isCurrentThreadCpuTimeSupported());
+
+        final Object owner = new Object();
+        controller.addBudget(owner, 0L, 10, 0, queueDepth::get, 100);
+        try {
+            assertThat(controller.currentThreadCpuTime()).isNotNegative();
+        } finally {
+            controller.removeBudget(owner);
+        }
+        assertThat(controller.currentThreadCpuTime()).isNegative();
+    }
+
+    @Test
+    public void controllerRecoversAfterCalmWindows() throws Exception {
+        queueDepth.set(90);
+        controller.evaluate();
+        assertThat(controller.getStep()).isEqualTo(OverheadController.Step.NO_SOURCE);
+
+        queueDepth.set(0);
+        for (int i = 0; i < OverheadController.RECOVERY_WINDOWS - 1; i++) {
+            controller.evaluate();
+        }
+        assertThat(controller.getStep()).isEqualTo(OverheadController.Step.NO_SOURCE);
+
+        controller.evaluate();
+        assertThat(controller.getStep()).isEqualTo(OverheadController.Step.NORMAL);
+        assertThat(controller.getTransitions()).isEqualTo(2L);
+    }
+
+    @Test
+    public void removingLastBudgetResetsStep() throws Exception {
+        queueDepth.set(90);
+        controller.evaluate();
+        controller.removeBudget(this);
+
+        assertThat(controller.getStep()).isEqualTo(OverheadController.Step.NORMAL);
+    }
+
+    private static LogEvent createLogEvent(Level level, Throwable thrown) {
+        return Log4jLogEvent.newBuilder()
+                .setLoggerName("org.example.Test")
+                .setLevel(level)
+                .setMessage(new SimpleMessage("Test"))
+                .setThrown(thrown)
+                .setIncludeLocation(true)
+                .build();
+    }
+}
@@ -0,0 +1,124 @@
+/**
+ * Graylog Internal Logs Plugin - Internal Logs plugin for Graylog
+ * Copyright © 2016 Graylog, Inc. (hello@graylog.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.internallogs.log4j;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.core.LoggerContext;
+import org.apache.logging.log4j.core.config.Configuration;
+import org.apache.logging.log4j.core.config.LoggerConfig;
+import org.graylog.plugins.internallogs.jfr.FlightRecorderLogEvents;
+import org.graylog.plugins.internallogs.stats.HeavyHittersSketch;
+import org.graylog.plugins.internallogs.stats.LogThroughputAggregator;
+import org.graylog.plugins.internallogs.tail.LiveTailBuffer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnit;
+import org.mockito.junit.MockitoRule;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class SharedAppenderRegistryTest {
+    private static final String LOGGER_NAME = "org.graylog.plugins.internallogs.log4j.registry";
+
+    @Rule
+    public final MockitoRule mockitoRule = MockitoJUnit.rule();
+
+    @Mock
+    private LogThroughputAggregator throughputAggregator;
+    @Mock
+    private HeavyHittersSketch heavyHitters;
+    @Mock
+    private LiveTailBuffer liveTailBuffer;
+    private final List<Level> levels = new CopyOnWriteArrayList<>();
+    private final SerializedLogEventConsumer consumer = (level, serializedLogEvent) -> levels.add(level);
+    private final LoggerContext context = LoggerContext.getContext(false);
+    private SharedAppenderRegistry registry;
+
+    @Before
+    public void setUp() throws Exception {
+        registry = new SharedAppenderRegistry(throughputAggregator, heavyHitters, liveTailBuffer, new OverheadController(), new ContextSnapshots(),
+                new FlightRecorderLogEvents());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        registry.unregister(consumer);
+        context.getConfiguration().removeLogger(LOGGER_NAME);
+        context.updateLoggers();
+    }
+
+    private LoggerConfig addLoggerConfig() {
+        final LoggerConfig loggerConfig = new LoggerConfig(LOGGER_NAME, Level.INFO, false);
+        context.getConfiguration().addLogger(LOGGER_NAME, loggerConfig);
+        context.updateLoggers();
+        return loggerConfig;
+    }
+
+    @Test
+    public void registerAttachesAppenderToExistingLoggerConfigs() throws Exception {
+        final DirectConsumingAppender appender = registry.register(consumer, Level.INFO);
+
+        assertThat(appender.isStarted()).isTrue();
+        assertThat(context.getConfiguration().getRootLogger().getAppenders()).containsKey(SharedAppenderRegistry.APPENDER_NAME);
+    }
+
+    @Test
+    public void loggerConfigsAddedLaterReceiveAppender() throws Exception {
+        registry.register(consumer, Level.INFO);
+        final LoggerConfig loggerConfig = addLoggerConfig();
+
+        assertThat(loggerConfig.getAppenders()).containsKey(SharedAppenderRegistry.APPENDER_NAME);
+        context.getLogger(LOGGER_NAME).warn("Test");
+        assertThat(levels).containsExactly(Level.WARN);
+    }
+
+    @Test
+    public void appenderIsAttachedAgainAfterReconfiguration() throws Exception {
+        final DirectConsumingAppender appender = registry.register(consumer, Level.INFO);
+        final Configuration previousConfiguration = context.getConfiguration();
+
+        context.reconfigure();
+
+        final Configuration configuration = context.getConfiguration();
+        assertThat(configuration).isNotSameAs(previousConfiguration);
+        assertThat(appender.isStarted()).isTrue();
+        assertThat(configuration.getAppenders()).containsKey(SharedAppenderRegistry.APPENDER_NAME);
+        assertThat(configuration.getRootLogger().getAppenders()).containsKey(SharedAppenderRegistry.APPENDER_NAME);
+
+        context.getLogger(LOGGER_NAME).error("Test");
+        assertThat(levels).containsExactly(Level.ERROR);
+    }
+
+    @Test
+    public void unregisterStopsListeningForConfigurationChanges() throws Exception {
+        final DirectConsumingAppender appender = registry.register(consumer, Level.INFO);
+        registry.unregister(consumer);
+
+        final LoggerConfig loggerConfig = addLoggerConfig();
+
+        assertThat(appender.isStopped()).isTrue();
+        assertThat(loggerConfig.getAppenders()).doesNotContainKey(SharedAppenderRegistry.APPENDER_NAME);
+        assertThat(context.getConfiguration().getRootLogger().getAppenders()).doesNotContainKey(SharedAppenderRegistry.APPENDER_NAME);
+    }
+}
@@ -0,0 +1,432 @@
+/**
+ * Graylog Internal Logs Plugin - Internal Logs plugin for Graylog
+ * Copyright © 2016 Graylog, Inc. (hello@graylog.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.internallogs.soak;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.Snapshot;
+import com.codahale.metrics.UniformReservoir;
+import com.codahale.metrics.UniformSnapshot;
+import com.google.common.collect.ImmutableMap;
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.core.LoggerContext;
+import org.apache.logging.log4j.core.config.LoggerConfig;
+import org.graylog.plugins.internallogs.codec.NodeMetadataCache;
+import org.graylog.plugins.internallogs.codec.SerializedLogEventCodec;
+import org.graylog.plugins.internallogs.jfr.FlightRecorderLogEvents;
+import org.graylog.plugins.internallogs.log4j.ContextSnapshots;
+import org.graylog.plugins.internallogs.log4j.OverheadController;
+import org.graylog.plugins.internallogs.log4j.SharedAppenderRegistry;
+import org.graylog.plugins.internallogs.stats.HeavyHittersSketch;
+import org.graylog.plugins.internallogs.stats.LogThroughputAggregator;
+import org.graylog.plugins.internallogs.tail.LiveTailBuffer;
+import org.graylog.plugins.internallogs.transport.SerializedLogEventTransport;
+import org.graylog2.cluster.Node;
+import org.graylog2.cluster.NodeService;
+import org.graylog2.plugin.LocalMetricRegistry;
+import org.graylog2.plugin.Message;
+import org.graylog2.plugin.cluster.ClusterConfigService;
+import org.graylog2.plugin.cluster.ClusterId;
+import org.graylog2.plugin.configuration.Configuration;
+import org.graylog2.plugin.inputs.MessageInput;
+import org.graylog2.plugin.journal.RawMessage;
+import org.graylog2.plugin.system.NodeId;
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.io.PrintStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
+
+/**
+ * End-to-end soak test for the complete pipeline: Log4j logger → {@code DirectConsumingAppender} →
+ * {@link SerializedLogEventTransport} → {@link SerializedLogEventCodec#decode(RawMessage)} → {@link Message}.
+ * <p>
+ * The test is skipped unless the {@code soak} system property is set, e.g.
+ * <pre>
+ * mvn test -Dtest=InternalLogsSoakTest -Dsoak=true -Dsoak.threads=8 -Dsoak.rate=20000 -Dsoak.duration=300
+ * </pre>
+ * Alternatively {@link #main(String[])} can be run with the same system properties from the test class path.
+ * <p>
+ * Supported properties:
+ * <ul>
+ * <li>{@code soak.duration}: measured run time in seconds (default 30)</li>
+ * <li>{@code soak.warmup}: unmeasured warm-up time in seconds (default 5)</li>
+ * <li>{@code soak.threads}: number of logging threads (default 4)</li>
+ * <li>{@code soak.rate}: log calls per second and thread, 0 for as fast as possible (default 10000)</li>
+ * <li>{@code soak.shape}: one of {@link Shape} (default MIXED)</li>
+ * <li>{@code soak.config.*}: transport and codec configuration, e.g. {@code -Dsoak.config.dispatch_mode=PRIORITY}</li>
+ * </ul>
+ * The report contains throughput, percentiles of the latency of the logging calls, dropped messages and
+ * garbage collection statistics of the measured phase.
+ */
+public class InternalLogsSoakTest {
+    private static final String LOGGER_PREFIX = "org.graylog.plugins.internallogs.soak.load";
+    private static final int LATENCY_SAMPLES_PER_THREAD = 100_000;
+
+    enum Shape {
+        /**
+         * Constant INFO messages without parameters.
+         */
+        SIMPLE,
+        /**
+         * INFO messages with two parameters.
+         */
+        PARAMETERIZED,
+        /**
+         * WARN messages with a parameter and an exception.
+         */
+        EXCEPTION,
+        /**
+         * 89% INFO, 10% WARN and 1% ERROR with exception, spread over ten loggers.
+         */
+        MIXED
+    }
+
+    @Test
+    public void soak() throws Exception {
+        Assume.assumeTrue("Set -Dsoak=true to run the soak test", Boolean.getBoolean("soak"));
+
+        final Result result = run(Settings.fromSystemProperties());
+        result.print(System.out);
+
+        assertThat(result.logged).isPositive();
+        assertThat(result.decoded).isPositive();
+        assertThat(result.decodeFailures).isZero();
+    }
+
+    public static void main(String[] args) throws Exception {
+        run(Settings.fromSystemProperties()).print(System.out);
+    }
+
+    private static Result run(Settings settings) throws Exception {
+        final LoggerContext context = LoggerContext.getContext(false);
+        final LoggerConfig loggerConfig = new LoggerConfig(LOGGER_PREFIX, Level.ALL, false);
+        context.getConfiguration().addLogger(LOGGER_PREFIX, loggerConfig);
+        context.updateLoggers();
+
+        final NodeId nodeId = mock(NodeId.class, withSettings().stubOnly());
+        when(nodeId.toString()).thenReturn("soak-node");
+        final Node node = mock(Node.class, withSettings().stubOnly());
+        when(node.getHostname()).thenReturn("soak.example.org");
+        final NodeService nodeService = mock(NodeService.class, withSettings().stubOnly());
+        when(nodeService.byNodeId(nodeId)).thenReturn(node);
+        final ClusterConfigService clusterConfigService = mock(ClusterConfigService.class, withSettings().stubOnly());
+        when(clusterConfigService.get(ClusterId.class)).thenReturn(ClusterId.create("soak-cluster"));
+
+        final Configuration configuration = new Configuration(settings.config);
+        final ContextSnapshots contextSnapshots = new ContextSnapshots();
+        final SerializedLogEventCodec codec = new SerializedLogEventCodec(configuration,
+                new NodeMetadataCache(nodeId, nodeService, clusterConfigService), contextSnapshots);
+        final OverheadController overheadController = new OverheadController();
+        final FlightRecorderLogEvents flightRecorderLogEvents = new FlightRecorderLogEvents();
+        final SharedAppenderRegistry appenderRegistry = new SharedAppenderRegistry(new LogThroughputAggregator(nodeId),
+                new HeavyHittersSketch(), new LiveTailBuffer(), overheadController, contextSnapshots, flightRecorderLogEvents);
+        final SerializedLogEventCodec.Factory codecFactory = mock(SerializedLogEventCodec.Factory.class, withSettings().stubOnly());
+        when(codecFactory.create(any(Configuration.class))).thenReturn(codec);
+        final LocalMetricRegistry metricRegistry = new LocalMetricRegistry();
+        final SerializedLogEventTransport transport = new SerializedLogEventTransport(
+                configuration, metricRegistry, appenderRegistry, overheadController, flightRecorderLogEvents, codecFactory);
+
+        final LongAdder decoded = new LongAdder();
+        final LongAdder decodeFailures = new LongAdder();
+        final MessageInput input = mock(MessageInput.class, withSettings().stubOnly());
+        doAnswer(invocation -> {
+            final Message message = codec.decode(invocation.getArgument(0));
+            if (message == null) {
+                decodeFailures.increment();
+            } else {
+                decoded.increment();
+            }
+            return null;
+        }).when(input).processRawMessage(any(RawMessage.class));
+
+        final Level threshold = Level.toLevel(configuration.getString("level_threshold"), Level.INFO);
+        transport.launch(input);
+        try {
+            final LoadGenerator warmup = new LoadGenerator(settings, threshold);
+            warmup.run(settings.warmupSeconds);
+
+            final long decodedBefore = decoded.sum();
+            final long droppedBefore = countDropped(metricRegistry);
+            final Map<String, long[]> gcBefore = gcStats();
+
+            final LoadGenerator load = new LoadGenerator(settings, threshold);
+            final long elapsedNanos = load.run(settings.durationSeconds);
+            final Map<String, long[]> gcAfter = gcStats();
+
+            // Give the dispatcher a chance to catch up before counting
+            final long delivered = warmup.delivered.sum() + load.delivered.sum();
+            final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10L);
+            while (decoded.sum() + countDropped(metricRegistry) + decodeFailures.sum() < delivered && System.nanoTime() < deadline) {
+                Thread.sleep(10L);
+            }
+            final long pending = delivered - decoded.sum() - countDropped(metricRegistry) - decodeFailures.sum();
+
+            return new Result(settings,
+                    elapsedNanos,
+                    load.logged.sum(),
+                    load.delivered.sum(),
+                    decoded.sum() - decodedBefore,
+                    decodeFailures.sum(),
+                    countDropped(metricRegistry) - droppedBefore,
+                    pending,
+                    load.latencySnapshot(),
+                    gcBefore,
+                    gcAfter,
+                    overheadController.getTransitions());
+        } finally {
+            transport.stop();
+            context.getConfiguration().removeLogger(LOGGER_PREFIX);
+            context.updateLoggers();
+        }
+    }
+
+    private static long countDropped(LocalMetricRegistry metricRegistry) {
+        long dropped = 0L;
+        for (Map.Entry<String, Meter> entry : metricRegistry.getMeters().entrySet()) {
+            if (entry.getKey().endsWith("dropped")) {
+                dropped += entry.getValue().getCount();
+            }
+        }
+        return dropped;
+    }
+
+    private static Map<String, long[]> gcStats() {
+        final Map<String, long[]> stats = new LinkedHashMap<>();
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            stats.put(gc.getName(), new long[]{gc.getCollectionCount(), gc.getCollectionTime()});
+        }
+        return stats;
+    }
+
+    private static class Settings {
+        private final long durationSeconds;
+        private final long warmupSeconds;
+        private final int threads;
+        private final long rate;
+        private final Shape shape;
+        private final Map<String, Object> config;
+
+        private Settings(long durationSeconds, long warmupSeconds, int threads, long rate, Shape shape, Map<String, Object> config) {
+            this.durationSeconds = durationSeconds;
+            this.warmupSeconds = warmupSeconds;
+            this.threads = threads;
+            this.rate = rate;
+            this.shape = shape;
+            this.config = config;
+        }
+
+        private static Settings fromSystemProperties() {
+            final Map<String, Object> config = new LinkedHashMap<>();
+            for (String name : System.getProperties().stringPropertyNames()) {
+                if (name.startsWith("soak.config.")) {
+                    final String value = System.getProperty(name);
+                    final String key = name.substring("soak.config.".length());
+                    config.put(key, value.matches("-?\\d+") ? (Object) Integer.valueOf(value) : value);
+                }
+            }
+            return new Settings(
+                    Long.getLong("soak.duration", 30L),
+                    Long.getLong("soak.warmup", 5L),
+                    Integer.getInteger("soak.threads", 4),
+                    Long.getLong("soak.rate", 10_000L),
+                    Shape.valueOf(System.getProperty("soak.shape", Shape.MIXED.name()).toUpperCase(Locale.ENGLISH)),
+                    ImmutableMap.copyOf(config));
+        }
+    }
+
+    private static class LoadGenerator {
+        private static final Exception EXCEPTION = new IllegalStateException("Soak test exception");
+
+        private final Settings settings;
+        private final Level threshold;
+        private final Logger[] loggers = new Logger[10];
+        private final List<UniformReservoir> latencies = new ArrayList<>();
+        private final LongAdder logged = new LongAdder();
+        private final LongAdder delivered = new LongAdder();
+
+        private LoadGenerator(Settings settings, Level threshold) {
+            this.settings = settings;
+            this.threshold = threshold;
+            for (int i = 0; i < loggers.length; i++) {
+                loggers[i] = LoggerContext.getContext(false).getLogger(LOGGER_PREFIX + ".Logger" + i);
+            }
+        }
+
+        private long run(long seconds) throws InterruptedException {
+            final CountDownLatch start = new CountDownLatch(1);
+            final List<Thread> threads = new ArrayList<>(settings.threads);
+            final long durationNanos = TimeUnit.SECONDS.toNanos(seconds);
+            for (int i = 0; i < settings.threads; i++) {
+                final UniformReservoir reservoir = new UniformReservoir(LATENCY_SAMPLES_PER_THREAD);
+                latencies.add(reservoir);
+                final Thread thread = new Thread(() -> generate(start, durationNanos, reservoir), "soak-load-" + i);
+                thread.setDaemon(true);
+                threads.add(thread);
+                thread.start();
+            }
+
+            final long startNanos = System.nanoTime();
+            start.countDown();
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            return System.nanoTime() - startNanos;
+        }
+
+        private void generate(CountDownLatch start, long durationNanos, UniformReservoir reservoir) {
+            try {
+                start.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+
+            final long intervalNanos = settings.rate > 0L ? TimeUnit.SECONDS.toNanos(1L) / settings.rate : 0L;
+            final long startNanos = System.nanoTime();
+            long next = startNanos;
+            for (long i = 0L; System.nanoTime() - startNanos < durationNanos; i++) {
+                if (intervalNanos > 0L) {
+                    next += intervalNanos;
+                    final long wait = next - System.nanoTime();
+                    if (wait > 0L) {
+                        LockSupport.parkNanos(wait);
+                    }
+                }
+
+                final long before = System.nanoTime();
+                final Level level = log(i);
+                reservoir.update(System.nanoTime() - before);
+
+                logged.increment();
+                if (level.isMoreSpecificThan(threshold)) {
+                    delivered.increment();
+                }
+            }
+        }
+
+        private Level log(long i) {
+            switch (settings.shape) {
+                case SIMPLE:
+                    loggers[0].info("Soak test message");
+                    return Level.INFO;
+                case PARAMETERIZED:
+                    loggers[0].info("Processed {} messages in {} ms", i, i % 1000L);
+                    return Level.INFO;
+                case EXCEPTION:
+                    loggers[0].warn("Couldn't process message {}", i, EXCEPTION);
+                    return Level.WARN;
+                case MIXED:
+                default:
+                    final Logger logger = loggers[(int) (i % loggers.length)];
+                    final long bucket = i % 100L;
+                    if (bucket == 0L) {
+                        logger.error("Couldn't process message {}", i, EXCEPTION);
+                        return Level.ERROR;
+                    } else if (bucket < 11L) {
+                        logger.warn("Message {} took {} ms", i, bucket);
+                        return Level.WARN;
+                    } else {
+                        logger.info("Processed {} messages in {} ms", i, bucket);
+                        return Level.INFO;
+                    }
+            }
+        }
+
+        private Snapshot latencySnapshot() {
+            final List<Long> values = new ArrayList<>();
+            for (UniformReservoir reservoir : latencies) {
+                for (long value : reservoir.getSnapshot().getValues()) {
+                    values.add(value);
+                }
+            }
+            return new UniformSnapshot(values);
+        }
+    }
+
+    private static class Result {
+        private final Settings settings;
+        private final long elapsedNanos;
+        private final long logged;
+        private final long delivered;
+        private final long decoded;
+        private final long decodeFailures;
+        private final long dropped;
+        private final long pending;
+        private final Snapshot latency;
+        private final Map<String, long[]> gcBefore;
+        private final Map<String, long[]> gcAfter;
+        private final long overheadTransitions;
+
+        private Result(Settings settings, long elapsedNanos, long logged, long delivered, long decoded,
+                       long decodeFailures, long dropped, long pending, Snapshot latency,
+                       Map<String, long[]> gcBefore, Map<String, long[]> gcAfter, long overheadTransitions) {
+            this.settings = settings;
+            this.elapsedNanos = elapsedNanos;
+            this.logged = logged;
+            this.delivered = delivered;
+            this.decoded = decoded;
+            this.decodeFailures = decodeFailures;
+            this.dropped = dropped;
+            this.pending = pending;
+            this.latency = latency;
+            this.gcBefore = gcBefore;
+            this.gcAfter = gcAfter;
+            this.overheadTransitions = overheadTransitions;
+        }
+
+        private void print(PrintStream out) {
+            final double seconds = elapsedNanos / (double) TimeUnit.SECONDS.toNanos(1L);
+            out.printf(Locale.ENGLISH, "Soak test: %d threads, %s, %s, %d s (%d s warm-up), config %s%n",
+                    settings.threads,
+                    settings.rate > 0L ? settings.rate + " calls/s per thread" : "unthrottled",
+                    settings.shape, settings.durationSeconds, settings.warmupSeconds, settings.config);
+            out.printf(Locale.ENGLISH, "  throughput:   %.0f calls/s, %.0f messages/s decoded%n", logged / seconds, decoded / seconds);
+            out.printf(Locale.ENGLISH, "  log calls:    %d (%d above threshold)%n", logged, delivered);
+            out.printf(Locale.ENGLISH, "  decoded:      %d (%d failures)%n", decoded, decodeFailures);
+            out.printf(Locale.ENGLISH, "  dropped:      %d (%.3f%%)%n", dropped, delivered == 0L ? 0.0d : 100.0d * dropped / delivered);
+            out.printf(Locale.ENGLISH, "  unaccounted:  %d (still queued or dropped by the overhead controller)%n", pending);
+            out.printf(Locale.ENGLISH, "  latency (µs): p50 %.1f, p99 %.1f, p999 %.1f, max %.1f%n",
+                    latency.getMedian() / 1000.0d, latency.get99thPercentile() / 1000.0d,
+                    latency.get999thPercentile() / 1000.0d, latency.getMax() / 1000.0d);
+            out.printf(Locale.ENGLISH, "  overhead controller transitions: %d%n", overheadTransitions);
+            for (Map.Entry<String, long[]> entry : gcAfter.entrySet()) {
+                final long[] before = gcBefore.getOrDefault(entry.getKey(), new long[2]);
+                out.printf(Locale.ENGLISH, "  gc %s: %d collections, %d ms%n",
+                        entry.getKey(), entry.getValue()[0] - before[0], entry.getValue()[1] - before[1]);
+            }
+        }
+    }
+}
@@ -0,0 +1,92 @@
+/**
+ * Graylog Internal Logs Plugin - Internal Logs plugin for Graylog
+ * Copyright © 2016 Graylog, Inc. (hello@graylog.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.internallogs.stats;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ClusterThroughputSummaryTest {
+    private static ThroughputSummary.LoggerCount logger(String name, Map<String, Long> levels) {
+        return new ThroughputSummary.LoggerCount(name, levels.values().stream().mapToLong(Long::longValue).sum(), levels);
+    }
+
+    @Test
+    public void mergeSumsLevelsAndLoggersOfAllNodes() throws Exception {
+        final ThroughputSummary node1 = new ThroughputSummary("node-1", 60L, 3L,
+                ImmutableMap.of("INFO", 2L, "ERROR", 1L),
+                ImmutableList.of(
+                        logger("org.example.Foo", ImmutableMap.of("INFO", 2L)),
+                        logger("org.example.Bar", ImmutableMap.of("ERROR", 1L))));
+        final ThroughputSummary node2 = new ThroughputSummary("node-2", 60L, 4L,
+                ImmutableMap.of("ERROR", 4L),
+                ImmutableList.of(logger("org.example.Bar", ImmutableMap.of("ERROR", 4L))));
+        final Map<String, Optional<ThroughputSummary>> nodeSummaries = new LinkedHashMap<>();
+        nodeSummaries.put("node-2", Optional.of(node2));
+        nodeSummaries.put("node-3", Optional.empty());
+        nodeSummaries.put("node-1", Optional.of(node1));
+
+        final ClusterThroughputSummary summary = ClusterThroughputSummary.merge(nodeSummaries, 10);
+
+        assertThat(summary.getWindowSeconds()).isEqualTo(60L);
+        assertThat(summary.getTotal()).isEqualTo(7L);
+        assertThat(summary.getLevels())
+                .containsEntry("INFO", 2L)
+                .containsEntry("ERROR", 5L);
+        assertThat(summary.getLoggers()).hasSize(2);
+        assertThat(summary.getLoggers().get(0).getLoggerName()).isEqualTo("org.example.Bar");
+        assertThat(summary.getLoggers().get(0).getTotal()).isEqualTo(5L);
+        assertThat(summary.getLoggers().get(0).getLevels()).containsEntry("ERROR", 5L);
+        assertThat(summary.getLoggers().get(1).getLoggerName()).isEqualTo("org.example.Foo");
+        assertThat(summary.getNodes()).containsOnlyKeys("node-1", "node-2");
+        assertThat(summary.getUnavailableNodes()).containsExactly("node-3");
+    }
+
+    @Test
+    public void mergeLimitsLoggers() throws Exception {
+        final ThroughputSummary node = new ThroughputSummary("node-1", 60L, 3L,
+                ImmutableMap.of("INFO", 3L),
+                ImmutableList.of(
+                        logger("org.example.Foo", ImmutableMap.of("INFO", 2L)),
+                        logger("org.example.Bar", ImmutableMap.of("INFO", 1L))));
+
+        final ClusterThroughputSummary summary = ClusterThroughputSummary.merge(
+                Collections.singletonMap("node-1", Optional.of(node)), 1);
+
+        assertThat(summary.getLoggers()).hasSize(1);
+        assertThat(summary.getLoggers().get(0).getLoggerName()).isEqualTo("org.example.Foo");
+    }
+
+    @Test
+    public void mergeWithoutAvailableNodesIsEmpty() throws Exception {
+        final ClusterThroughputSummary summary = ClusterThroughputSummary.merge(
+                Collections.singletonMap("node-1", Optional.empty()), 10);
+
+        assertThat(summary.getTotal()).isZero();
+        assertThat(summary.getLevels()).isEmpty();
+        assertThat(summary.getLoggers()).isEmpty();
+        assertThat(summary.getUnavailableNodes()).containsExactly("node-1");
+    }
+}
@@ -0,0 +1,67 @@
+/**
+ * Graylog Internal Logs Plugin - Internal Logs plugin for Graylog
+ * Copyright © 2016 Graylog, Inc. (hello@graylog.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.internallogs.stats;
+
+import org.apache.logging.log4j.Level;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class HeavyHittersSketchTest {
+    @Test
+    public void topReturnsExactCountsWhileBelowCapacity() throws Exception {
+        final HeavyHittersSketch sketch = new HeavyHittersSketch(4);
+        sketch.offer("org.example.Foo", Level.INFO);
+        sketch.offer("org.example.Foo", Level.INFO);
+        sketch.offer("org.example.Foo", Level.DEBUG);
+        sketch.offer("org.example.Bar", Level.INFO);
+
+        final List<HeavyHittersSketch.HeavyHitter> top = sketch.top(10);
+        assertThat(top).hasSize(3);
+        assertThat(top.get(0).getLoggerName()).isEqualTo("org.example.Foo");
+        assertThat(top.get(0).getLevel()).isEqualTo("INFO");
+        assertThat(top.get(0).getCount()).isEqualTo(2L);
+        assertThat(top.get(0).getError()).isEqualTo(0L);
+        assertThat(sketch.total()).isEqualTo(4L);
+    }
+
+    @Test
+    public void heavyHitterSurvivesManyDistinctLoggers() throws Exception {
+        final HeavyHittersSketch sketch = new HeavyHittersSketch(8);
+        for (int i = 0; i < 1000; i++) {
+            sketch.offer("org.example.Noisy", Level.WARN);
+            sketch.offer("org.example.Quiet" + i, Level.INFO);
+        }
+
+        final List<HeavyHittersSketch.HeavyHitter> top = sketch.top(1);
+        assertThat(top).hasSize(1);
+        assertThat(top.get(0).getLoggerName()).isEqualTo("org.example.Noisy");
+        assertThat(top.get(0).getCount()).isGreaterThanOrEqualTo(1000L);
+        assertThat(sketch.top(100)).hasSize(8);
+    }
+
+    @Test
+    public void topWithNegativeLimitReturnsEmptyList() throws Exception {
+        final HeavyHittersSketch sketch = new HeavyHittersSketch(2);
+        sketch.offer("org.example.Foo", Level.INFO);
+
+        assertThat(sketch.top(-1)).isEmpty();
+    }
+}
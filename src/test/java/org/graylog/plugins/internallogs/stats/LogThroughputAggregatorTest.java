@@ -0,0 +1,90 @@
+/**
+ * Graylog Internal Logs Plugin - Internal Logs plugin for Graylog
+ * Copyright © 2016 Graylog, Inc. (hello@graylog.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.internallogs.stats;
+
+import org.apache.logging.log4j.Level;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class LogThroughputAggregatorTest {
+    private final AtomicLong clock = new AtomicLong(10_000L);
+    private LogThroughputAggregator aggregator;
+
+    @Before
+    public void setUp() throws Exception {
+        aggregator = new LogThroughputAggregator("node-id", clock::get, 3, 1000L);
+    }
+
+    @Test
+    public void summarizeCountsEventsPerLevelAndLogger() throws Exception {
+        aggregator.record(Level.INFO, "org.example.Foo");
+        aggregator.record(Level.INFO, "org.example.Foo");
+        aggregator.record(Level.ERROR, "org.example.Bar");
+
+        final ThroughputSummary summary = aggregator.summarize(10);
+        assertThat(summary.getNodeId()).isEqualTo("node-id");
+        assertThat(summary.getWindowSeconds()).isEqualTo(3L);
+        assertThat(summary.getTotal()).isEqualTo(3L);
+        assertThat(summary.getLevels())
+                .containsEntry("INFO", 2L)
+                .containsEntry("ERROR", 1L)
+                .doesNotContainKey("DEBUG");
+        assertThat(summary.getLoggers()).hasSize(2);
+        assertThat(summary.getLoggers().get(0).getLoggerName()).isEqualTo("org.example.Foo");
+        assertThat(summary.getLoggers().get(0).getTotal()).isEqualTo(2L);
+        assertThat(summary.getLoggers().get(1).getLevels()).containsEntry("ERROR", 1L);
+    }
+
+    @Test
+    public void summarizeOnlyIncludesEventsWithinWindow() throws Exception {
+        aggregator.record(Level.INFO, "org.example.Old");
+        clock.addAndGet(2000L);
+        aggregator.record(Level.INFO, "org.example.Recent");
+
+        assertThat(aggregator.summarize(10).getTotal()).isEqualTo(2L);
+
+        clock.addAndGet(1000L);
+        final ThroughputSummary summary = aggregator.summarize(10);
+        assertThat(summary.getTotal()).isEqualTo(1L);
+        assertThat(summary.getLoggers()).extracting(ThroughputSummary.LoggerCount::getLoggerName)
+                .containsExactly("org.example.Recent");
+    }
+
+    @Test
+    public void recycledSlotIsReset() throws Exception {
+        aggregator.record(Level.WARN, "org.example.Foo");
+        clock.addAndGet(3000L);
+        aggregator.record(Level.WARN, "org.example.Foo");
+
+        assertThat(aggregator.summarize(10).getLevels()).containsEntry("WARN", 1L);
+    }
+
+    @Test
+    public void summarizeLimitsNumberOfLoggers() throws Exception {
+        aggregator.record(Level.INFO, "a");
+        aggregator.record(Level.INFO, "b");
+        aggregator.record(Level.INFO, "c");
+
+        assertThat(aggregator.summarize(2).getLoggers()).hasSize(2);
+        assertThat(aggregator.summarize(-1).getLoggers()).isEmpty();
+    }
+}
@@ -0,0 +1,118 @@
+/**
+ * Graylog Internal Logs Plugin - Internal Logs plugin for Graylog
+ * Copyright © 2016 Graylog, Inc. (hello@graylog.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.internallogs.tail;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.impl.Log4jLogEvent;
+import org.apache.logging.log4j.message.Message;
+import org.apache.logging.log4j.message.SimpleMessage;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class LiveTailBufferTest {
+    private final LiveTailBuffer buffer = new LiveTailBuffer(4);
+
+    @Test
+    public void readReturnsOnlyNewEntries() throws Exception {
+        buffer.append(createLogEvent(Level.INFO, "org.example.Foo", "one"));
+        buffer.append(createLogEvent(Level.INFO, "org.example.Foo", "two"));
+
+        final TailResult first = buffer.read(-1L, 10, null, null);
+        assertThat(first.getEntries()).extracting(TailEntry::getMessage).containsExactly("one", "two");
+        assertThat(first.getNextCursor()).isEqualTo(2L);
+
+        buffer.append(createLogEvent(Level.WARN, "org.example.Foo", "three"));
+        final TailResult second = buffer.read(first.getNextCursor(), 10, null, null);
+        assertThat(second.getEntries()).extracting(TailEntry::getMessage).containsExactly("three");
+        assertThat(second.getEntries().get(0).getLevel()).isEqualTo("WARN");
+        assertThat(second.getNextCursor()).isEqualTo(3L);
+        assertThat(second.getSkipped()).isZero();
+
+        assertThat(buffer.read(second.getNextCursor(), 10, null, null).getEntries()).isEmpty();
+    }
+
+    @Test
+    public void readFiltersByLevelAndLogger() throws Exception {
+        buffer.append(createLogEvent(Level.DEBUG, "org.example.Foo", "debug"));
+        buffer.append(createLogEvent(Level.ERROR, "org.example.Foo", "error"));
+        buffer.append(createLogEvent(Level.ERROR, "org.other.Bar", "other"));
+
+        final TailResult result = buffer.read(0L, 10, Level.WARN, "org.example");
+        assertThat(result.getEntries()).extracting(TailEntry::getMessage).containsExactly("error");
+        assertThat(result.getNextCursor()).isEqualTo(3L);
+    }
+
+    @Test
+    public void readReportsOverwrittenEntries() throws Exception {
+        for (int i = 0; i < 6; i++) {
+            buffer.append(createLogEvent(Level.INFO, "org.example.Foo", "message-" + i));
+        }
+
+        final TailResult result = buffer.read(0L, 10, null, null);
+        assertThat(result.getEntries()).extracting(TailEntry::getMessage)
+                .containsExactly("message-2", "message-3", "message-4", "message-5");
+        assertThat(result.getSkipped()).isEqualTo(2L);
+    }
+
+    @Test
+    public void readRespectsLimit() throws Exception {
+        buffer.append(createLogEvent(Level.INFO, "org.example.Foo", "one"));
+        buffer.append(createLogEvent(Level.INFO, "org.example.Foo", "two"));
+        buffer.append(createLogEvent(Level.INFO, "org.example.Foo", "three"));
+
+        final TailResult latest = buffer.read(-1L, 1, null, null);
+        assertThat(latest.getEntries()).extracting(TailEntry::getMessage).containsExactly("three");
+
+        final TailResult first = buffer.read(0L, 1, null, null);
+        assertThat(first.getEntries()).extracting(TailEntry::getMessage).containsExactly("one");
+        assertThat(first.getNextCursor()).isEqualTo(1L);
+    }
+
+    @Test
+    public void failingAppendDoesNotStallReaders() throws Exception {
+        buffer.append(createLogEvent(Level.INFO, "org.example.Foo", "one"));
+        final Message failingMessage = mock(Message.class);
+        when(failingMessage.getFormattedMessage()).thenThrow(new IllegalStateException("BOOM"));
+        final LogEvent failingEvent = Log4jLogEvent.newBuilder()
+                .setLoggerName("org.example.Foo")
+                .setLevel(Level.INFO)
+                .setMessage(failingMessage)
+                .build();
+
+        assertThatThrownBy(() -> buffer.append(failingEvent)).isInstanceOf(IllegalStateException.class);
+        buffer.append(createLogEvent(Level.INFO, "org.example.Foo", "two"));
+
+        final TailResult result = buffer.read(0L, 10, null, null);
+        assertThat(result.getEntries()).extracting(TailEntry::getMessage).containsExactly("one", "two");
+        assertThat(result.getNextCursor()).isEqualTo(2L);
+        assertThat(result.getSkipped()).isZero();
+    }
+
+    private static LogEvent createLogEvent(Level level, String loggerName, String message) {
+        return Log4jLogEvent.newBuilder()
+                .setLoggerName(loggerName)
+                .setLevel(level)
+                .setMessage(new SimpleMessage(message))
+                .build();
+    }
+}
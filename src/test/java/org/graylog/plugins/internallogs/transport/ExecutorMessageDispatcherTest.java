@@ -0,0 +1,159 @@
+/**
+ * Graylog Internal Logs Plugin - Internal Logs plugin for Graylog
+ * Copyright © 2016 Graylog, Inc. (hello@graylog.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.internallogs.transport;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import org.apache.logging.log4j.Level;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ExecutorMessageDispatcherTest {
+    private final MetricRegistry metricRegistry = new MetricRegistry();
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() throws Exception {
+        executor = Executors.newSingleThreadExecutor();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void dispatchPassesPayloadToSink() throws Exception {
+        final CountDownLatch latch = new CountDownLatch(1);
+        final ExecutorMessageDispatcher dispatcher = new ExecutorMessageDispatcher(executor, 10, payload -> latch.countDown(), metricRegistry);
+
+        dispatcher.dispatch(Level.INFO, new byte[]{1});
+
+        assertThat(latch.await(1L, TimeUnit.SECONDS)).isTrue();
+        assertThat(metricRegistry.getGauges()).containsKey(ExecutorMessageDispatcher.METRIC_QUEUE_SIZE);
+    }
+
+    @Test
+    public void dispatchDropsPayloadIfQueueIsFull() throws Exception {
+        final CountDownLatch blocker = new CountDownLatch(1);
+        final ExecutorMessageDispatcher dispatcher = new ExecutorMessageDispatcher(executor, 2, payload -> {
+            try {
+                blocker.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, metricRegistry);
+
+        dispatcher.dispatch(Level.INFO, new byte[]{1});
+        dispatcher.dispatch(Level.INFO, new byte[]{2});
+        dispatcher.dispatch(Level.INFO, new byte[]{3});
+
+        assertThat(dispatcher.getQueueDepth()).isEqualTo(2);
+        assertThat(metricRegistry.meter(ExecutorMessageDispatcher.METRIC_DROPPED).getCount()).isEqualTo(1L);
+        blocker.countDown();
+    }
+
+    @Test
+    public void failingSinkIsCounted() throws Exception {
+        final ExecutorMessageDispatcher dispatcher = new ExecutorMessageDispatcher(executor, 10, payload -> {
+            throw new IllegalStateException("Boom");
+        }, metricRegistry);
+        final Meter failed = metricRegistry.meter(ExecutorMessageDispatcher.METRIC_FAILED);
+
+        dispatcher.dispatch(Level.INFO, new byte[]{1});
+        dispatcher.stop(1L, TimeUnit.SECONDS);
+
+        assertThat(executor.awaitTermination(1L, TimeUnit.SECONDS)).isTrue();
+        assertThat(failed.getCount()).isEqualTo(1L);
+        assertThat(dispatcher.getQueueDepth()).isZero();
+    }
+
+    @Test
+    public void stopDrainsPendingEvents() throws Exception {
+        final CountDownLatch blocker = new CountDownLatch(1);
+        final AtomicInteger processed = new AtomicInteger();
+        final ExecutorMessageDispatcher dispatcher = new ExecutorMessageDispatcher(executor, 10, payload -> {
+            try {
+                blocker.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            processed.incrementAndGet();
+        }, metricRegistry);
+        final Meter dropped = metricRegistry.meter(ExecutorMessageDispatcher.METRIC_DROPPED);
+
+        dispatcher.dispatch(Level.INFO, new byte[]{1});
+        dispatcher.dispatch(Level.INFO, new byte[]{2});
+        blocker.countDown();
+
+        assertThat(dispatcher.stop(1L, TimeUnit.SECONDS)).isZero();
+        assertThat(processed.get()).isEqualTo(2);
+
+        dispatcher.dispatch(Level.INFO, new byte[]{3});
+        assertThat(dropped.getCount()).isEqualTo(1L);
+    }
+
+    @Test
+    public void stopRemovesMetrics() throws Exception {
+        final ExecutorMessageDispatcher dispatcher = new ExecutorMessageDispatcher(executor, 10, payload -> {
+        }, metricRegistry);
+        assertThat(metricRegistry.getNames()).contains(
+                ExecutorMessageDispatcher.METRIC_QUEUE_SIZE,
+                ExecutorMessageDispatcher.METRIC_LATENCY,
+                ExecutorMessageDispatcher.METRIC_DROPPED,
+                ExecutorMessageDispatcher.METRIC_FAILED);
+
+        dispatcher.stop(1L, TimeUnit.SECONDS);
+
+        assertThat(metricRegistry.getNames()).doesNotContain(
+                ExecutorMessageDispatcher.METRIC_QUEUE_SIZE,
+                ExecutorMessageDispatcher.METRIC_LATENCY,
+                ExecutorMessageDispatcher.METRIC_DROPPED,
+                ExecutorMessageDispatcher.METRIC_FAILED);
+    }
+
+    @Test
+    public void stopReturnsEventsWhichCouldNotBeDrainedInTime() throws Exception {
+        final CountDownLatch started = new CountDownLatch(1);
+        final ExecutorMessageDispatcher dispatcher = new ExecutorMessageDispatcher(executor, 10, payload -> {
+            started.countDown();
+            try {
+                new CountDownLatch(1).await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, metricRegistry);
+
+        dispatcher.dispatch(Level.INFO, new byte[]{1});
+        dispatcher.dispatch(Level.INFO, new byte[]{2});
+        dispatcher.dispatch(Level.INFO, new byte[]{3});
+        assertThat(started.await(1L, TimeUnit.SECONDS)).isTrue();
+
+        // The interrupted event is still in progress
+        assertThat(dispatcher.stop(10L, TimeUnit.MILLISECONDS)).isBetween(2, 3);
+    }
+}
@@ -0,0 +1,243 @@
+/**
+ * Graylog Internal Logs Plugin - Internal Logs plugin for Graylog
+ * Copyright © 2016 Graylog, Inc. (hello@graylog.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.internallogs.transport;
+
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.net.HostAndPort;
+import org.apache.logging.log4j.Level;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ForwardingMessageDispatcherTest {
+    private static final Function<byte[], byte[]> IDENTITY = payload -> payload;
+
+    private final MetricRegistry metricRegistry = new MetricRegistry();
+    private ServerSocket serverSocket;
+    private ForwardingMessageDispatcher dispatcher;
+
+    @Before
+    public void setUp() throws Exception {
+        serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        serverSocket.setSoTimeout(5000);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (dispatcher != null) {
+            dispatcher.stop(0L, TimeUnit.SECONDS);
+        }
+        serverSocket.close();
+    }
+
+    private HostAndPort serverAddress() {
+        return HostAndPort.fromParts(serverSocket.getInetAddress().getHostAddress(), serverSocket.getLocalPort());
+    }
+
+    private static byte[] readFrame(InputStream inputStream) throws Exception {
+        final ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        int b;
+        while ((b = inputStream.read()) != 0) {
+            if (b == -1) {
+                throw new EOFException();
+            }
+            payload.write(b);
+        }
+        return payload.toByteArray();
+    }
+
+    @Test
+    public void dispatchSendsNullDelimitedFrames() throws Exception {
+        dispatcher = new ForwardingMessageDispatcher(serverAddress(), 1, 10, 100, IDENTITY, metricRegistry);
+
+        dispatcher.dispatch(Level.INFO, new byte[]{1, 2, 3});
+        dispatcher.dispatch(Level.ERROR, new byte[]{4});
+
+        try (Socket socket = serverSocket.accept();
+             InputStream inputStream = new BufferedInputStream(socket.getInputStream())) {
+            socket.setSoTimeout(5000);
+            assertThat(readFrame(inputStream)).containsExactly(1, 2, 3);
+            assertThat(readFrame(inputStream)).containsExactly(4);
+        }
+        assertThat(metricRegistry.meter(ForwardingMessageDispatcher.METRIC_SENT).getCount()).isEqualTo(2L);
+        assertThat(metricRegistry.getGauges()).containsKeys(
+                ForwardingMessageDispatcher.METRIC_BUFFER_SIZE, ForwardingMessageDispatcher.METRIC_CONNECTIONS);
+    }
+
+    @Test
+    public void dispatchRetriesAfterConnectionLoss() throws Exception {
+        dispatcher = new ForwardingMessageDispatcher(serverAddress(), 1, 1, 100, IDENTITY, metricRegistry);
+
+        dispatcher.dispatch(Level.INFO, new byte[]{1});
+        try (Socket socket = serverSocket.accept();
+             InputStream inputStream = new BufferedInputStream(socket.getInputStream())) {
+            socket.setSoTimeout(5000);
+            assertThat(readFrame(inputStream)).containsExactly(1);
+        }
+
+        // Writes into a connection closed by the peer eventually fail and force a reconnect
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5L);
+        while (metricRegistry.meter(ForwardingMessageDispatcher.METRIC_FAILURES).getCount() == 0L && System.nanoTime() < deadline) {
+            dispatcher.dispatch(Level.INFO, new byte[]{2});
+            Thread.sleep(10L);
+        }
+        assertThat(metricRegistry.meter(ForwardingMessageDispatcher.METRIC_FAILURES).getCount()).isPositive();
+
+        try (Socket socket = serverSocket.accept();
+             InputStream inputStream = new BufferedInputStream(socket.getInputStream())) {
+            socket.setSoTimeout(5000);
+            assertThat(readFrame(inputStream)).containsExactly(2);
+        }
+    }
+
+    @Test
+    public void dispatchDropsPayloadIfBufferIsFull() throws Exception {
+        final HostAndPort unavailable = serverAddress();
+        serverSocket.close();
+        dispatcher = new ForwardingMessageDispatcher(unavailable, 1, 1, 2, IDENTITY, metricRegistry);
+
+        for (int i = 0; i < 10; i++) {
+            dispatcher.dispatch(Level.INFO, new byte[]{(byte) i});
+        }
+
+        assertThat(dispatcher.getQueueDepth()).isLessThanOrEqualTo(2);
+        assertThat(dispatcher.getQueueCapacity()).isEqualTo(2);
+        assertThat(metricRegistry.meter(ForwardingMessageDispatcher.METRIC_DROPPED).getCount()).isGreaterThanOrEqualTo(7L);
+    }
+
+    @Test
+    public void stopSendsBufferedEvents() throws Exception {
+        dispatcher = new ForwardingMessageDispatcher(serverAddress(), 1, 1, 100, IDENTITY, metricRegistry);
+        for (int i = 0; i < 3; i++) {
+            dispatcher.dispatch(Level.INFO, new byte[]{(byte) (i + 1)});
+        }
+
+        // The connection is established by the backlog of the server socket, before accepting it
+        assertThat(dispatcher.stop(5L, TimeUnit.SECONDS)).isZero();
+
+        try (Socket socket = serverSocket.accept();
+             InputStream inputStream = new BufferedInputStream(socket.getInputStream())) {
+            socket.setSoTimeout(5000);
+            assertThat(readFrame(inputStream)).containsExactly(1);
+            assertThat(readFrame(inputStream)).containsExactly(2);
+            assertThat(readFrame(inputStream)).containsExactly(3);
+        }
+    }
+
+    @Test
+    public void stopReturnsEventsWhichCouldNotBeSent() throws Exception {
+        final HostAndPort unavailable = serverAddress();
+        serverSocket.close();
+        dispatcher = new ForwardingMessageDispatcher(unavailable, 1, 10, 100, IDENTITY, metricRegistry);
+        for (int i = 0; i < 3; i++) {
+            dispatcher.dispatch(Level.INFO, new byte[]{(byte) i});
+        }
+
+        assertThat(dispatcher.stop(50L, TimeUnit.MILLISECONDS)).isEqualTo(3);
+    }
+
+    @Test
+    public void dispatchSendsEncodedPayloads() throws Exception {
+        dispatcher = new ForwardingMessageDispatcher(serverAddress(), 1, 10, 100,
+                payload -> new byte[]{payload[0], payload[0]}, metricRegistry);
+
+        dispatcher.dispatch(Level.INFO, new byte[]{7});
+
+        try (Socket socket = serverSocket.accept();
+             InputStream inputStream = new BufferedInputStream(socket.getInputStream())) {
+            socket.setSoTimeout(5000);
+            assertThat(readFrame(inputStream)).containsExactly(7, 7);
+        }
+    }
+
+    @Test
+    public void dispatchDropsPayloadsWhichCannotBeEncoded() throws Exception {
+        dispatcher = new ForwardingMessageDispatcher(serverAddress(), 1, 10, 100,
+                payload -> payload[0] == 1 ? null : payload, metricRegistry);
+
+        dispatcher.dispatch(Level.INFO, new byte[]{1});
+        dispatcher.dispatch(Level.INFO, new byte[]{2});
+
+        try (Socket socket = serverSocket.accept();
+             InputStream inputStream = new BufferedInputStream(socket.getInputStream())) {
+            socket.setSoTimeout(5000);
+            assertThat(readFrame(inputStream)).containsExactly(2);
+        }
+        assertThat(metricRegistry.meter(ForwardingMessageDispatcher.METRIC_DROPPED).getCount()).isEqualTo(1L);
+        assertThat(dispatcher.getQueueDepth()).isZero();
+    }
+
+    @Test
+    public void stalledEndpointFailsWritesAndDoesNotBlockStop() throws Exception {
+        dispatcher = new ForwardingMessageDispatcher(serverAddress(), 1, 1, 100, IDENTITY, 200L, metricRegistry);
+
+        // The server accepts the connection but never reads, so the socket buffers fill up
+        try (Socket socket = serverSocket.accept()) {
+            final byte[] payload = new byte[1024 * 1024];
+            Arrays.fill(payload, (byte) 1);
+            for (int i = 0; i < 8; i++) {
+                dispatcher.dispatch(Level.INFO, payload);
+            }
+
+            final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5L);
+            while (metricRegistry.meter(ForwardingMessageDispatcher.METRIC_FAILURES).getCount() == 0L && System.nanoTime() < deadline) {
+                Thread.sleep(10L);
+            }
+            assertThat(metricRegistry.meter(ForwardingMessageDispatcher.METRIC_FAILURES).getCount()).isPositive();
+
+            final long started = System.nanoTime();
+            assertThat(dispatcher.stop(100L, TimeUnit.MILLISECONDS)).isPositive();
+            assertThat(System.nanoTime() - started).isLessThan(TimeUnit.SECONDS.toNanos(2L));
+
+            // The interrupted sender gives up the pending write instead of leaking its thread
+            while (hasSenderThreads() && System.nanoTime() - started < TimeUnit.SECONDS.toNanos(5L)) {
+                Thread.sleep(10L);
+            }
+            assertThat(hasSenderThreads()).isFalse();
+        }
+    }
+
+    private static boolean hasSenderThreads() {
+        return Thread.getAllStackTraces().keySet().stream()
+                .anyMatch(thread -> thread.isAlive() && thread.getName().startsWith("internal-logs-forwarder-"));
+    }
+
+    @Test
+    public void stopRemovesGauges() throws Exception {
+        dispatcher = new ForwardingMessageDispatcher(serverAddress(), 2, 10, 100, IDENTITY, metricRegistry);
+        dispatcher.stop(1L, TimeUnit.SECONDS);
+
+        assertThat(metricRegistry.getGauges()).doesNotContainKeys(
+                ForwardingMessageDispatcher.METRIC_BUFFER_SIZE, ForwardingMessageDispatcher.METRIC_CONNECTIONS);
+        dispatcher.dispatch(Level.INFO, new byte[]{1});
+        assertThat(metricRegistry.meter(ForwardingMessageDispatcher.METRIC_DROPPED).getCount()).isEqualTo(1L);
+    }
+}
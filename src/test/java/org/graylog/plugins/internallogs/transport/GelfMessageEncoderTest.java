@@ -0,0 +1,100 @@
+/**
+ * Graylog Internal Logs Plugin - Internal Logs plugin for Graylog
+ * Copyright © 2016 Graylog, Inc. (hello@graylog.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.internallogs.transport;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.collect.ImmutableList;
+import org.graylog2.plugin.Message;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class GelfMessageEncoderTest {
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    @Test
+    public void encodeWritesStandardAndAdditionalFields() throws Exception {
+        final Message message = new Message("Hello", "node.example.org", new DateTime(1500000000123L, DateTimeZone.UTC));
+        message.addField(Message.FIELD_FULL_MESSAGE, "Hello\nWorld");
+        message.addField(Message.FIELD_LEVEL, 6);
+        message.addField("logger", "org.example.Test");
+        message.addField("line", 42);
+        message.addField("ratio", 0.5d);
+        message.addField("markers", ImmutableList.of("A", "B"));
+
+        final JsonNode json = objectMapper.readTree(GelfMessageEncoder.encode(message));
+
+        assertThat(json.path("version").asText()).isEqualTo("1.1");
+        assertThat(json.path("host").asText()).isEqualTo("node.example.org");
+        assertThat(json.path("short_message").asText()).isEqualTo("Hello");
+        assertThat(json.path("full_message").asText()).isEqualTo("Hello\nWorld");
+        assertThat(json.path("timestamp").asDouble()).isEqualTo(1500000000.123d);
+        assertThat(json.path("level").asInt()).isEqualTo(6);
+        assertThat(json.path("_logger").asText()).isEqualTo("org.example.Test");
+        assertThat(json.path("_line").isIntegralNumber()).isTrue();
+        assertThat(json.path("_line").asLong()).isEqualTo(42L);
+        assertThat(json.path("_ratio").asDouble()).isEqualTo(0.5d);
+        assertThat(json.path("_markers").asText()).isEqualTo("A, B");
+        assertThat(json.has("_id")).isFalse();
+        assertThat(json.has("_message")).isFalse();
+        assertThat(json.has("_source")).isFalse();
+        assertThat(json.has("_timestamp")).isFalse();
+    }
+
+    @Test
+    public void encodeWritesNonFiniteNumbersAsStrings() throws Exception {
+        final Message message = new Message("Hello", "node.example.org", new DateTime(DateTimeZone.UTC));
+        message.addField("ratio", Double.NaN);
+
+        final JsonNode json = objectMapper.readTree(GelfMessageEncoder.encode(message));
+
+        assertThat(json.path("_ratio").asText()).isEqualTo("NaN");
+    }
+
+    @Test
+    public void encodeFallsBackToNodeIdWithoutSource() throws Exception {
+        final Message message = new Message("Hello", null, new DateTime(DateTimeZone.UTC));
+        message.addField("node_id", "5ca1ab1e-0000-4000-8000-000000000000");
+
+        final JsonNode json = objectMapper.readTree(GelfMessageEncoder.encode(message));
+
+        assertThat(json.path("host").asText()).isEqualTo("5ca1ab1e-0000-4000-8000-000000000000");
+        assertThat(json.has("_node_id")).isTrue();
+    }
+
+    @Test
+    public void encodeFallsBackToLocalHostNameWithoutSourceAndNodeId() throws Exception {
+        final Message message = new Message("Hello", null, new DateTime(DateTimeZone.UTC));
+
+        final JsonNode json = objectMapper.readTree(GelfMessageEncoder.encode(message));
+
+        assertThat(json.path("host").asText()).isNotEmpty();
+    }
+
+    @Test
+    public void encodeWritesPlaceholderForEmptyShortMessage() throws Exception {
+        final Message message = new Message("", "node.example.org", new DateTime(DateTimeZone.UTC));
+
+        final JsonNode json = objectMapper.readTree(GelfMessageEncoder.encode(message));
+
+        assertThat(json.path("short_message").asText()).isEqualTo(GelfMessageEncoder.EMPTY_MESSAGE);
+    }
+}
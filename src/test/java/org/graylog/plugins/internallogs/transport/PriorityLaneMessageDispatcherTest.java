@@ -0,0 +1,167 @@
+/**
+ * Graylog Internal Logs Plugin - Internal Logs plugin for Graylog
+ * Copyright © 2016 Graylog, Inc. (hello@graylog.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.internallogs.transport;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import org.apache.logging.log4j.Level;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class PriorityLaneMessageDispatcherTest {
+    private final MetricRegistry metricRegistry = new MetricRegistry();
+    private PriorityLaneMessageDispatcher dispatcher;
+
+    @After
+    public void tearDown() throws Exception {
+        if (dispatcher != null) {
+            dispatcher.stop(0L, TimeUnit.SECONDS);
+        }
+    }
+
+    @Test
+    public void highPriorityEventsOvertakeQueuedLowPriorityEvents() throws Exception {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch blocker = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(12);
+        final List<Byte> processed = new CopyOnWriteArrayList<>();
+        dispatcher = new PriorityLaneMessageDispatcher(MessageDispatcher.createThreadFactory(), 1, 100, payload -> {
+            started.countDown();
+            try {
+                blocker.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            processed.add(payload[0]);
+            done.countDown();
+        }, metricRegistry);
+
+        dispatcher.dispatch(Level.DEBUG, new byte[]{0});
+        assertThat(started.await(1L, TimeUnit.SECONDS)).isTrue();
+        for (int i = 0; i < 9; i++) {
+            dispatcher.dispatch(Level.DEBUG, new byte[]{0});
+        }
+        dispatcher.dispatch(Level.ERROR, new byte[]{1});
+        dispatcher.dispatch(Level.WARN, new byte[]{1});
+        blocker.countDown();
+
+        assertThat(done.await(1L, TimeUnit.SECONDS)).isTrue();
+        assertThat(processed.subList(0, 4)).containsExactly((byte) 0, (byte) 1, (byte) 1, (byte) 0);
+    }
+
+    @Test
+    public void fullLowPriorityLaneDoesNotDropHighPriorityEvents() throws Exception {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch blocker = new CountDownLatch(1);
+        dispatcher = new PriorityLaneMessageDispatcher(MessageDispatcher.createThreadFactory(), 1, 2, payload -> {
+            started.countDown();
+            try {
+                blocker.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, metricRegistry);
+
+        dispatcher.dispatch(Level.INFO, new byte[]{0});
+        assertThat(started.await(1L, TimeUnit.SECONDS)).isTrue();
+        for (int i = 0; i < 10; i++) {
+            dispatcher.dispatch(Level.INFO, new byte[]{0});
+        }
+        dispatcher.dispatch(Level.ERROR, new byte[]{1});
+
+        assertThat(dispatcher.getPending(Level.INFO)).isEqualTo(2);
+        assertThat(dispatcher.getPending(Level.ERROR)).isEqualTo(1);
+        assertThat(metricRegistry.meter("dispatcher.high.dropped").getCount()).isZero();
+        assertThat(metricRegistry.meter("dispatcher.low.dropped").getCount()).isEqualTo(8L);
+        blocker.countDown();
+    }
+
+    @Test
+    public void levelsAreAssignedToLanes() throws Exception {
+        assertThat(PriorityLaneMessageDispatcher.isHighPriority(Level.FATAL)).isTrue();
+        assertThat(PriorityLaneMessageDispatcher.isHighPriority(Level.ERROR)).isTrue();
+        assertThat(PriorityLaneMessageDispatcher.isHighPriority(Level.WARN)).isTrue();
+        assertThat(PriorityLaneMessageDispatcher.isHighPriority(Level.INFO)).isFalse();
+        assertThat(PriorityLaneMessageDispatcher.isHighPriority(Level.DEBUG)).isFalse();
+    }
+
+    @Test
+    public void stopDrainsPendingEvents() throws Exception {
+        final List<Byte> processed = new CopyOnWriteArrayList<>();
+        final CountDownLatch blocker = new CountDownLatch(1);
+        dispatcher = new PriorityLaneMessageDispatcher(MessageDispatcher.createThreadFactory(), 1, 100, payload -> {
+            try {
+                blocker.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            processed.add(payload[0]);
+        }, metricRegistry);
+        final Meter highDropped = metricRegistry.meter("dispatcher.high.dropped");
+
+        for (int i = 0; i < 5; i++) {
+            dispatcher.dispatch(Level.INFO, new byte[]{(byte) i});
+        }
+        blocker.countDown();
+
+        assertThat(dispatcher.stop(1L, TimeUnit.SECONDS)).isZero();
+        assertThat(processed).hasSize(5);
+
+        dispatcher.dispatch(Level.ERROR, new byte[]{5});
+        assertThat(highDropped.getCount()).isEqualTo(1L);
+    }
+
+    @Test
+    public void stopRemovesMetrics() throws Exception {
+        dispatcher = new PriorityLaneMessageDispatcher(MessageDispatcher.createThreadFactory(), 1, 10, payload -> {
+        }, metricRegistry);
+        assertThat(metricRegistry.getNames()).isNotEmpty();
+
+        dispatcher.stop(1L, TimeUnit.SECONDS);
+
+        assertThat(metricRegistry.getNames()).isEmpty();
+    }
+
+    @Test
+    public void stopReturnsEventsWhichCouldNotBeDrainedInTime() throws Exception {
+        final CountDownLatch started = new CountDownLatch(1);
+        dispatcher = new PriorityLaneMessageDispatcher(MessageDispatcher.createThreadFactory(), 1, 100, payload -> {
+            started.countDown();
+            try {
+                new CountDownLatch(1).await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, metricRegistry);
+
+        for (int i = 0; i < 5; i++) {
+            dispatcher.dispatch(Level.INFO, new byte[]{(byte) i});
+        }
+        assertThat(started.await(1L, TimeUnit.SECONDS)).isTrue();
+
+        // The interrupted event might still be in progress
+        assertThat(dispatcher.stop(10L, TimeUnit.MILLISECONDS)).isBetween(4, 5);
+    }
+}
@@ -17,25 +17,43 @@
  */
 package org.graylog.plugins.internallogs.transport;
 
+import com.google.common.collect.ImmutableMap;
+import com.google.common.util.concurrent.Uninterruptibles;
 import org.apache.logging.log4j.Level;
 import org.apache.logging.log4j.core.impl.MutableLogEvent;
 import org.apache.logging.log4j.core.layout.SerializedLayout;
 import org.apache.logging.log4j.message.SimpleMessage;
+import org.graylog.plugins.internallogs.codec.SerializedLogEventCodec;
+import org.graylog.plugins.internallogs.jfr.FlightRecorderLogEvents;
+import org.graylog.plugins.internallogs.log4j.ContextSnapshots;
 import org.graylog.plugins.internallogs.log4j.DirectConsumingAppender;
+import org.graylog.plugins.internallogs.log4j.OverheadController;
+import org.graylog.plugins.internallogs.log4j.SharedAppenderRegistry;
+import org.graylog.plugins.internallogs.stats.HeavyHittersSketch;
+import org.graylog.plugins.internallogs.stats.LogThroughputAggregator;
+import org.graylog.plugins.internallogs.tail.LiveTailBuffer;
 import org.graylog2.plugin.LocalMetricRegistry;
 import org.graylog2.plugin.configuration.Configuration;
 import org.graylog2.plugin.inputs.MessageInput;
+import org.graylog2.plugin.inputs.MisfireException;
 import org.graylog2.plugin.inputs.codecs.CodecAggregator;
 import org.graylog2.plugin.journal.RawMessage;
+import org.junit.After;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
+import org.mockito.Mock;
 import org.mockito.junit.MockitoJUnit;
 import org.mockito.junit.MockitoRule;
 
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
 import static org.assertj.core.api.Java6Assertions.assertThat;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.timeout;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyNoMoreInteractions;
@@ -45,11 +63,28 @@ public class SerializedLogEventTransportTest {
     public final MockitoRule mockitoRule = MockitoJUnit.rule();
 
     private final LocalMetricRegistry metricRegistry = new LocalMetricRegistry();
+    @Mock
+    private LogThroughputAggregator throughputAggregator;
+    @Mock
+    private HeavyHittersSketch heavyHitters;
+    @Mock
+    private LiveTailBuffer liveTailBuffer;
+    @Mock
+    private SerializedLogEventCodec.Factory codecFactory;
+    private final OverheadController overheadController = new OverheadController();
+    private final FlightRecorderLogEvents flightRecorderLogEvents = new FlightRecorderLogEvents();
+    private SharedAppenderRegistry appenderRegistry;
     private SerializedLogEventTransport transport;
 
     @Before
     public void setUp() throws Exception {
-        transport = new SerializedLogEventTransport(Configuration.EMPTY_CONFIGURATION, metricRegistry);
+        appenderRegistry = new SharedAppenderRegistry(throughputAggregator, heavyHitters, liveTailBuffer, overheadController, new ContextSnapshots(), flightRecorderLogEvents);
+        transport = new SerializedLogEventTransport(Configuration.EMPTY_CONFIGURATION, metricRegistry, appenderRegistry, overheadController, flightRecorderLogEvents, codecFactory);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        transport.stop();
     }
 
     @Test
@@ -66,26 +101,170 @@ public class SerializedLogEventTransportTest {
         logEvent.setMessage(new SimpleMessage("Processed"));
         logEvent.setLevel(Level.ERROR);
         appender.append(logEvent);
-        verify(messageInput, times(1)).processRawMessage(any(RawMessage.class));
+        verify(messageInput, timeout(1000L).times(1)).processRawMessage(any(RawMessage.class));
+        verify(throughputAggregator, times(1)).record(logEvent);
+        verify(heavyHitters, times(1)).offer(logEvent);
+        verify(liveTailBuffer, times(1)).append(logEvent);
 
         final MutableLogEvent ignoredLogEvent = new MutableLogEvent();
         ignoredLogEvent.setMessage(new SimpleMessage("Ignored"));
         ignoredLogEvent.setLevel(Level.TRACE);
         appender.append(ignoredLogEvent);
+
+        // Drains the asynchronous dispatcher, so events which slipped through would have reached the input
+        transport.stop();
+        verifyNoMoreInteractions(messageInput);
+    }
+
+    @Test
+    public void logEventsBelowThresholdOnlyReachObservers() throws Exception {
+        final MessageInput messageInput = mock(MessageInput.class);
+        transport.launch(messageInput);
+
+        final MutableLogEvent debugEvent = new MutableLogEvent();
+        debugEvent.setMessage(new SimpleMessage("Debug"));
+        debugEvent.setLevel(Level.DEBUG);
+        transport.getAppender().append(debugEvent);
+
+        // The default threshold of the input is INFO, but noisy loggers are tracked at all levels
+        verify(heavyHitters, times(1)).offer(debugEvent);
+        verify(throughputAggregator, times(1)).record(debugEvent);
+        transport.stop();
         verifyNoMoreInteractions(messageInput);
     }
 
+    @Test
+    public void inlineDispatchModeProcessesMessagesOnLoggingThread() throws Exception {
+        final SerializedLogEventTransport inlineTransport = new SerializedLogEventTransport(
+                new Configuration(ImmutableMap.of("dispatch_mode", "INLINE")), new LocalMetricRegistry(), appenderRegistry, overheadController, flightRecorderLogEvents, codecFactory);
+        final MessageInput messageInput = mock(MessageInput.class);
+        inlineTransport.launch(messageInput);
+
+        try {
+            final MutableLogEvent logEvent = new MutableLogEvent();
+            logEvent.setMessage(new SimpleMessage("Processed"));
+            logEvent.setLevel(Level.ERROR);
+            inlineTransport.getAppender().append(logEvent);
+            verify(messageInput, times(1)).processRawMessage(any(RawMessage.class));
+        } finally {
+            inlineTransport.stop();
+        }
+    }
+
+    @Test
+    public void multipleTransportsShareOneAppender() throws Exception {
+        final SerializedLogEventTransport debugTransport = new SerializedLogEventTransport(
+                new Configuration(ImmutableMap.of("level_threshold", "DEBUG")), new LocalMetricRegistry(), appenderRegistry, overheadController, flightRecorderLogEvents, codecFactory);
+        final MessageInput infoInput = mock(MessageInput.class);
+        final MessageInput debugInput = mock(MessageInput.class);
+        transport.launch(infoInput);
+        debugTransport.launch(debugInput);
+
+        try {
+            final DirectConsumingAppender appender = transport.getAppender();
+            assertThat(debugTransport.getAppender()).isSameAs(appender);
+
+            final MutableLogEvent debugEvent = new MutableLogEvent();
+            debugEvent.setMessage(new SimpleMessage("Debug"));
+            debugEvent.setLevel(Level.DEBUG);
+            appender.append(debugEvent);
+            verify(debugInput, timeout(1000L).times(1)).processRawMessage(any(RawMessage.class));
+            transport.stop();
+            verifyNoMoreInteractions(infoInput);
+            verify(throughputAggregator, times(1)).record(debugEvent);
+        } finally {
+            debugTransport.stop();
+        }
+    }
+
     @Test
     public void stopShutsDownAppender() throws Exception {
-        final DirectConsumingAppender appender = mock(DirectConsumingAppender.class);
-        transport.setAppender(appender);
+        transport.launch(mock(MessageInput.class));
+        final DirectConsumingAppender appender = transport.getAppender();
+
         transport.stop();
-        verify(appender, times(1)).stop();
+        assertThat(appender.isStopped()).isTrue();
+        assertThat(transport.getAppender()).isNull();
+    }
+
+    @Test
+    public void stopKeepsSharedAppenderRunningForOtherTransports() throws Exception {
+        final SerializedLogEventTransport otherTransport = new SerializedLogEventTransport(
+                Configuration.EMPTY_CONFIGURATION, new LocalMetricRegistry(), appenderRegistry, overheadController, flightRecorderLogEvents, codecFactory);
+        transport.launch(mock(MessageInput.class));
+        otherTransport.launch(mock(MessageInput.class));
+        final DirectConsumingAppender appender = transport.getAppender();
+
+        transport.stop();
+        assertThat(appender.isStarted()).isTrue();
+
+        otherTransport.stop();
+        assertThat(appender.isStopped()).isTrue();
+    }
+
+    @Test
+    public void stopReportsFlushedMessages() throws Exception {
+        final MessageInput messageInput = mock(MessageInput.class);
+        final CountDownLatch processing = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        doAnswer(invocation -> {
+            processing.countDown();
+            Uninterruptibles.awaitUninterruptibly(release);
+            return null;
+        }).when(messageInput).processRawMessage(any(RawMessage.class));
+        transport.launch(messageInput);
+        final MutableLogEvent logEvent = new MutableLogEvent();
+        logEvent.setMessage(new SimpleMessage("Processed"));
+        logEvent.setLevel(Level.ERROR);
+        transport.getAppender().append(logEvent);
+        assertThat(processing.await(1L, TimeUnit.SECONDS)).isTrue();
+
+        // The event is still pending when stopping and is handed over while draining
+        final Thread releaser = new Thread(() -> {
+            Uninterruptibles.sleepUninterruptibly(100L, TimeUnit.MILLISECONDS);
+            release.countDown();
+        });
+        releaser.start();
+        transport.stop();
+        releaser.join();
+
+        verify(messageInput, times(1)).processRawMessage(any(RawMessage.class));
+        assertThat(metricRegistry.getCounters().get("stop.flushed").getCount()).isEqualTo(1L);
+        assertThat(metricRegistry.getCounters().get("stop.dropped").getCount()).isZero();
+    }
+
+    @Test
+    public void stopReportsDroppedMessagesIfSinkIsStuck() throws Exception {
+        final LocalMetricRegistry stuckMetricRegistry = new LocalMetricRegistry();
+        final SerializedLogEventTransport stuckTransport = new SerializedLogEventTransport(
+                new Configuration(ImmutableMap.of("drain_timeout_ms", 50)), stuckMetricRegistry, appenderRegistry, overheadController, flightRecorderLogEvents, codecFactory);
+        final MessageInput messageInput = mock(MessageInput.class);
+        final CountDownLatch release = new CountDownLatch(1);
+        doAnswer(invocation -> {
+            Uninterruptibles.awaitUninterruptibly(release);
+            return null;
+        }).when(messageInput).processRawMessage(any(RawMessage.class));
+        stuckTransport.launch(messageInput);
+
+        try {
+            final MutableLogEvent logEvent = new MutableLogEvent();
+            logEvent.setMessage(new SimpleMessage("Stuck"));
+            logEvent.setLevel(Level.ERROR);
+            stuckTransport.getAppender().append(logEvent);
+            stuckTransport.getAppender().append(logEvent);
+
+            stuckTransport.stop();
+        } finally {
+            release.countDown();
+        }
+
+        assertThat(stuckMetricRegistry.getCounters().get("stop.dropped").getCount()).isGreaterThan(0L);
+        assertThat(stuckMetricRegistry.getCounters().get("stop.flushed").getCount()
+                + stuckMetricRegistry.getCounters().get("stop.dropped").getCount()).isEqualTo(2L);
     }
 
     @Test
     public void stopSucceedsIfAppenderIsNull() throws Exception {
-        transport.setAppender(null);
         transport.stop();
     }
 
@@ -96,8 +275,66 @@ public class SerializedLogEventTransportTest {
         verifyNoMoreInteractions(codecAggregator);
     }
 
+    @Test
+    public void launchRegistersOverheadBudget() throws Exception {
+        final LocalMetricRegistry budgetMetricRegistry = new LocalMetricRegistry();
+        final SerializedLogEventTransport budgetTransport = new SerializedLogEventTransport(
+                new Configuration(ImmutableMap.of("overhead_budget_micros", 50)), budgetMetricRegistry, appenderRegistry, overheadController, flightRecorderLogEvents, codecFactory);
+        budgetTransport.launch(mock(MessageInput.class));
+
+        try {
+            assertThat(budgetMetricRegistry.getGauges()).containsKeys("overhead.step", "overhead.transitions");
+        } finally {
+            budgetTransport.stop();
+        }
+        assertThat(budgetMetricRegistry.getGauges()).doesNotContainKeys("overhead.step", "overhead.transitions");
+    }
+
+    @Test
+    public void launchRegistersContextSnapshotMissesIfContextIsShared() throws Exception {
+        transport.launch(mock(MessageInput.class));
+        assertThat(metricRegistry.getGauges()).doesNotContainKey("context.snapshotMisses");
+        transport.stop();
+
+        final LocalMetricRegistry sharingMetricRegistry = new LocalMetricRegistry();
+        final SerializedLogEventTransport sharingTransport = new SerializedLogEventTransport(
+                new Configuration(ImmutableMap.of("share_context_snapshots", true)), sharingMetricRegistry, appenderRegistry, overheadController, flightRecorderLogEvents, codecFactory);
+        sharingTransport.launch(mock(MessageInput.class));
+
+        try {
+            assertThat(sharingMetricRegistry.getGauges()).containsKey("context.snapshotMisses");
+            assertThat(sharingMetricRegistry.getGauges().get("context.snapshotMisses").getValue()).isEqualTo(0L);
+        } finally {
+            sharingTransport.stop();
+        }
+        assertThat(sharingMetricRegistry.getGauges()).doesNotContainKey("context.snapshotMisses");
+    }
+
+    @Test
+    public void launchRegistersFlightRecorderFailureGaugeIfEventsAreRecorded() throws Exception {
+        final LocalMetricRegistry recordingMetricRegistry = new LocalMetricRegistry();
+        final SerializedLogEventTransport recordingTransport = new SerializedLogEventTransport(
+                new Configuration(ImmutableMap.of("flight_recorder_events", true)), recordingMetricRegistry, appenderRegistry, overheadController, flightRecorderLogEvents, codecFactory);
+        recordingTransport.launch(mock(MessageInput.class));
+
+        try {
+            assertThat(recordingMetricRegistry.getGauges()).containsKey("jfr.failed");
+            assertThat(recordingMetricRegistry.getGauges().get("jfr.failed").getValue()).isEqualTo(false);
+        } finally {
+            recordingTransport.stop();
+        }
+        assertThat(recordingMetricRegistry.getGauges()).doesNotContainKey("jfr.failed");
+    }
+
+    @Test(expected = MisfireException.class)
+    public void launchFailsIfForwardingHostIsMissing() throws Exception {
+        final SerializedLogEventTransport forwardingTransport = new SerializedLogEventTransport(
+                new Configuration(ImmutableMap.of("output_mode", "FORWARD")), new LocalMetricRegistry(), appenderRegistry, overheadController, flightRecorderLogEvents, codecFactory);
+        forwardingTransport.launch(mock(MessageInput.class));
+    }
+
     @Test
     public void getMetricSetReturnsMetricRegistry() throws Exception {
         assertThat(transport.getMetricSet()).isSameAs(metricRegistry);
     }
-}
\ No newline at end of file
+}